@@ -0,0 +1,775 @@
+package net.asgot.markovchain;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.IntToDoubleFunction;
+import java.util.function.ToDoubleFunction;
+import java.util.stream.IntStream;
+
+/**
+ * Convergence and mixing diagnostics for a Markov chain: the stationary
+ * distribution, the second-largest eigenvalue modulus and spectral gap of the
+ * transition matrix, the total variation distance to stationarity after a
+ * number of steps, and the Gelman-Rubin statistic of several independent
+ * walkers.
+ * <p>
+ * The transitions are kept in flat arrays indexed by to-state, so multiplying
+ * a distribution by the transition matrix computes each state's new
+ * probability from its incoming transitions only. Chains with at least
+ * {@value #PARALLEL_THRESHOLD} states are processed in parallel over states,
+ * and the walkers of the Gelman-Rubin statistic run in parallel as well. For
+ * large chains, compiling and reordering the chain with
+ * {@link StateOrdering#CUTHILL_MCKEE} first makes these computations read
+ * memory more locally.
+ * <p>
+ * The stationary distribution and the second-largest eigenvalue modulus are
+ * computed iteratively on first use and then cached. If the maximum number of
+ * iterations runs out before the change between iterations drops to the
+ * tolerance, the last iterate is used anyway; whether that happened can be
+ * checked with {@link #getStationaryConvergence()} and
+ * {@link #getEigenvalueConvergence()}.
+ *
+ * @author Daniel Martin
+ *
+ * @param <T>
+ *            The type to use as the key for states.
+ */
+public class ChainDiagnostics<T> {
+
+    /**
+     * Default maximum number of iterations for the stationary distribution and
+     * the second-largest eigenvalue modulus.
+     */
+    public static final int DEFAULT_MAX_ITERATIONS = 1000;
+
+    /**
+     * Default tolerance at which iterations are considered converged.
+     */
+    public static final double DEFAULT_TOLERANCE = 1e-9;
+
+    /**
+     * From this many states on, computations run in parallel.
+     */
+    static final int PARALLEL_THRESHOLD = 1 << 14;
+
+    /**
+     * Number of iterations whose norm ratios are averaged when estimating the
+     * second-largest eigenvalue modulus, so that complex and negative
+     * eigenvalues don't make the estimate oscillate.
+     */
+    private static final int EIGENVALUE_WINDOW = 16;
+
+    /**
+     * Number of consecutive states processed as one parallel task.
+     */
+    private static final int BLOCK_SIZE = 1 << 12;
+
+    private final CompiledMarkovChain<T> chain;
+
+    private final Random random;
+
+    private final int maxIterations;
+
+    private final double tolerance;
+
+    /**
+     * Offsets of each state's incoming transitions; the transitions into
+     * state {@code id} are at indices {@code inOffsets[id]} to
+     * {@code inOffsets[id + 1] - 1}.
+     */
+    private final int[] inOffsets;
+
+    private final int[] inSources;
+
+    private final double[] inProbabilities;
+
+    /**
+     * Probability of each state staying put because its transitions sum to
+     * less than 1.
+     */
+    private final double[] remainders;
+
+    private double[] stationaryDistribution;
+
+    private Convergence stationaryConvergence;
+
+    private double secondEigenvalueModulus;
+
+    private Convergence eigenvalueConvergence;
+
+    /**
+     * Constructs a {@code ChainDiagnostics} for the given chain. Uses
+     * {@code new Random()} as the RNG and the default number of iterations and
+     * tolerance.
+     *
+     * @param chain
+     *            the chain to diagnose
+     * @throws IllegalArgumentException
+     *             if chain is null
+     */
+    public ChainDiagnostics(ChainStructure<T> chain) {
+        this(chain, new Random(), DEFAULT_MAX_ITERATIONS, DEFAULT_TOLERANCE);
+    }
+
+    /**
+     * Constructs a {@code ChainDiagnostics} for the given chain. The chain is
+     * compiled unless it is a {@link CompiledMarkovChain} already, so later
+     * changes to it aren't seen by the diagnostics.
+     *
+     * @param chain
+     *            the chain to diagnose
+     * @param random
+     *            source of random numbers for start vectors and walkers
+     * @param maxIterations
+     *            the maximum number of iterations for the stationary
+     *            distribution and the second-largest eigenvalue modulus
+     * @param tolerance
+     *            the change between iterations below which they are
+     *            considered converged
+     * @throws IllegalArgumentException
+     *             if chain or random is null, maxIterations isn't positive or
+     *             tolerance is negative
+     */
+    public ChainDiagnostics(ChainStructure<T> chain, Random random, int maxIterations,
+            double tolerance) {
+        if (chain == null) {
+            throw new IllegalArgumentException("chain must not be null");
+        }
+
+        if (random == null) {
+            throw new IllegalArgumentException("random must not be null");
+        }
+
+        if (maxIterations <= 0) {
+            throw new IllegalArgumentException("maxIterations must be positive");
+        }
+
+        if (tolerance < 0.0) {
+            throw new IllegalArgumentException("tolerance must not be negative");
+        }
+
+        this.chain = chain instanceof CompiledMarkovChain ? (CompiledMarkovChain<T>) chain
+                : CompiledMarkovChain.compile(chain);
+        this.random = random;
+        this.maxIterations = maxIterations;
+        this.tolerance = tolerance;
+
+        int stateCount = this.chain.getStateCount();
+        int[] offsets = this.chain.getOffsets();
+        int[] targets = this.chain.getTargets();
+        double[] cumulative = this.chain.getCumulativeProbabilities();
+
+        // Transposes the transitions with a counting sort by to-state
+        this.inOffsets = new int[stateCount + 1];
+
+        for (int target : targets) {
+            this.inOffsets[target + 1]++;
+        }
+
+        for (int id = 0; id < stateCount; id++) {
+            this.inOffsets[id + 1] += this.inOffsets[id];
+        }
+
+        this.inSources = new int[targets.length];
+        this.inProbabilities = new double[targets.length];
+        this.remainders = new double[stateCount];
+        int[] next = Arrays.copyOf(this.inOffsets, stateCount);
+
+        for (int id = 0; id < stateCount; id++) {
+            double previous = 0.0;
+
+            for (int i = offsets[id]; i < offsets[id + 1]; i++) {
+                double c = Math.min(cumulative[i], 1.0);
+                int slot = next[targets[i]]++;
+                this.inSources[slot] = id;
+                this.inProbabilities[slot] = c - previous;
+                previous = c;
+            }
+
+            this.remainders[id] = 1.0 - previous;
+        }
+    }
+
+    /**
+     * Gets the stationary distribution of the chain, computed by power
+     * iteration from the uniform distribution. Iterating on the lazy chain,
+     * which stays put with probability 1/2, makes this converge for periodic
+     * chains too. For chains that aren't irreducible, the result is the
+     * limit reached from the uniform distribution.
+     * <p>
+     * If the iteration didn't converge within the maximum number of
+     * iterations, this is the last iterate; see
+     * {@link #getStationaryConvergence()}.
+     *
+     * @return the probability of each state, indexed by id
+     */
+    public double[] getStationaryDistribution() {
+        return getStationary().clone();
+    }
+
+    /**
+     * Gets the stationary probability of the given state.
+     *
+     * @param key
+     *            the key of the state
+     * @return the stationary probability
+     * @throws StateNotDefinedException
+     *             if the state hasn't been defined
+     * @see #getStationaryDistribution()
+     */
+    public double getStationaryProbability(T key) {
+        return getStationary()[this.chain.getStateId(key)];
+    }
+
+    /**
+     * Gets how the power iteration for the stationary distribution ended,
+     * computing the distribution if it hasn't been yet. The residual is the
+     * L1 distance between the last two iterates.
+     *
+     * @return the convergence of the stationary distribution
+     * @see #getStationaryDistribution()
+     */
+    public Convergence getStationaryConvergence() {
+        getStationary();
+        return this.stationaryConvergence;
+    }
+
+    /**
+     * Estimates the second-largest eigenvalue modulus of the transition
+     * matrix. Distributions minus the stationary distribution sum to 0, and
+     * the chain keeps them summing to 0, so the eigenvalue 1 is deflated by
+     * power iterating on vectors that sum to 0. The modulus is the geometric
+     * mean of the norm ratios over the last few iterations.
+     * <p>
+     * If the estimate didn't converge within the maximum number of
+     * iterations, this is the last estimate; see
+     * {@link #getEigenvalueConvergence()}.
+     *
+     * @return the second-largest eigenvalue modulus, between 0 and 1
+     */
+    public double getSecondEigenvalueModulus() {
+        if (this.eigenvalueConvergence == null) {
+            this.secondEigenvalueModulus = estimateSecondEigenvalueModulus();
+        }
+
+        return this.secondEigenvalueModulus;
+    }
+
+    /**
+     * Gets how the estimate of the second-largest eigenvalue modulus ended,
+     * estimating it if it hasn't been yet. The residual is the change between
+     * the last two estimates, each taken over {@value #EIGENVALUE_WINDOW}
+     * iterations, or infinity if there were too few iterations to compare
+     * two estimates.
+     *
+     * @return the convergence of the second-largest eigenvalue modulus
+     * @see #getSecondEigenvalueModulus()
+     */
+    public Convergence getEigenvalueConvergence() {
+        getSecondEigenvalueModulus();
+        return this.eigenvalueConvergence;
+    }
+
+    private double estimateSecondEigenvalueModulus() {
+        int stateCount = this.chain.getStateCount();
+
+        if (stateCount < 2) {
+            this.eigenvalueConvergence = new Convergence(0, 0.0, true);
+            return 0.0;
+        }
+
+        // Column sums of the transition matrix, so that the projection of the
+        // previous iteration can be folded into the multiplication:
+        // (x - m) P = x P - m * columnSums
+        double[] columnSums = new double[stateCount];
+        forEachBlock((block, from, to) -> {
+            for (int id = from; id < to; id++) {
+                double sum = this.remainders[id];
+
+                for (int i = this.inOffsets[id]; i < this.inOffsets[id + 1]; i++) {
+                    sum += this.inProbabilities[i];
+                }
+
+                columnSums[id] = sum;
+            }
+        });
+
+        double[] vector = new double[stateCount];
+        double[] next = new double[stateCount];
+        double sum = 0.0;
+        double squares = 0.0;
+
+        for (int id = 0; id < stateCount; id++) {
+            vector[id] = this.random.nextDouble() - 0.5;
+            sum += vector[id];
+            squares += vector[id] * vector[id];
+        }
+
+        double[] sums = new double[2 * blockCount()];
+        double[] logRatios = new double[EIGENVALUE_WINDOW];
+        double estimate = Double.NaN;
+        double residual = Double.POSITIVE_INFINITY;
+        double norm = 0.0;
+        int iteration;
+
+        for (iteration = 0; iteration <= this.maxIterations; iteration++) {
+            // The vector minus its mean sums to 0; its norm relative to the
+            // previous, normalized vector is how much the iteration scaled it
+            double mean = sum / stateCount;
+            norm = Math.sqrt(Math.max(0.0, squares - sum * mean));
+
+            if (norm == 0.0) {
+                this.eigenvalueConvergence = new Convergence(iteration, 0.0, true);
+                return 0.0;
+            }
+
+            if (iteration > 0) {
+                logRatios[iteration % EIGENVALUE_WINDOW] = Math.log(norm);
+
+                if (iteration % EIGENVALUE_WINDOW == 0) {
+                    double logSum = 0.0;
+
+                    for (double logRatio : logRatios) {
+                        logSum += logRatio;
+                    }
+
+                    double previous = estimate;
+                    estimate = Math.min(1.0, Math.exp(logSum / EIGENVALUE_WINDOW));
+
+                    if (!Double.isNaN(previous)) {
+                        residual = Math.abs(estimate - previous);
+
+                        if (residual <= this.tolerance) {
+                            break;
+                        }
+                    }
+                }
+            }
+
+            if (iteration == this.maxIterations) {
+                break;
+            }
+
+            double factor = 1.0 / norm;
+            final double[] current = vector;
+            final double[] result = next;
+            forEachBlock((block, from, to) -> {
+                double blockSum = 0.0;
+                double blockSquares = 0.0;
+
+                for (int id = from; id < to; id++) {
+                    double value = factor * (product(current, id) - mean * columnSums[id]);
+                    result[id] = value;
+                    blockSum += value;
+                    blockSquares += value * value;
+                }
+
+                sums[2 * block] = blockSum;
+                sums[2 * block + 1] = blockSquares;
+            });
+
+            sum = 0.0;
+            squares = 0.0;
+
+            for (int block = 0; block < sums.length; block += 2) {
+                sum += sums[block];
+                squares += sums[block + 1];
+            }
+
+            vector = next;
+            next = current;
+        }
+
+        this.eigenvalueConvergence = new Convergence(Math.min(iteration, this.maxIterations),
+                residual, residual <= this.tolerance);
+
+        if (Double.isNaN(estimate)) {
+            // Fewer iterations than one window
+            return Math.min(1.0, norm);
+        }
+
+        return estimate;
+    }
+
+    /**
+     * Estimates the spectral gap of the transition matrix, which is 1 minus
+     * the second-largest eigenvalue modulus. The larger the gap, the faster
+     * the chain mixes; a gap of 0 means it doesn't converge to a unique
+     * stationary distribution.
+     *
+     * @return the spectral gap, between 0 and 1
+     * @see #getSecondEigenvalueModulus()
+     */
+    public double getSpectralGap() {
+        return 1.0 - getSecondEigenvalueModulus();
+    }
+
+    /**
+     * Gets the total variation distance between the distribution of a walk
+     * from the given state and the stationary distribution, after each number
+     * of steps from 0 to maxSteps.
+     *
+     * @param start
+     *            the key of the state to start from
+     * @param maxSteps
+     *            the maximum number of steps
+     * @return the distance after {@code t} steps at index {@code t}
+     * @throws IllegalArgumentException
+     *             if maxSteps is negative
+     * @throws StateNotDefinedException
+     *             if the state hasn't been defined
+     */
+    public double[] getTotalVariationDistances(T start, int maxSteps) {
+        return getTotalVariationDistancesById(this.chain.getStateId(start), maxSteps);
+    }
+
+    /**
+     * Gets the total variation distance between the distribution of a walk
+     * from the given state and the stationary distribution, after each number
+     * of steps from 0 to maxSteps.
+     *
+     * @param start
+     *            the id of the state to start from
+     * @param maxSteps
+     *            the maximum number of steps
+     * @return the distance after {@code t} steps at index {@code t}
+     * @throws IllegalArgumentException
+     *             if maxSteps is negative
+     * @throws StateNotDefinedException
+     *             if no state has the given id
+     */
+    public double[] getTotalVariationDistancesById(int start, int maxSteps) {
+        checkId(start);
+
+        if (maxSteps < 0) {
+            throw new IllegalArgumentException("maxSteps must not be negative");
+        }
+
+        double[] stationary = getStationary();
+        double[] distribution = new double[stationary.length];
+        double[] next = new double[stationary.length];
+        double[] distances = new double[maxSteps + 1];
+        distribution[start] = 1.0;
+
+        double[] partialDistances = new double[blockCount()];
+        distances[0] = 1.0 - stationary[start];
+
+        for (int step = 1; step <= maxSteps; step++) {
+            final double[] current = distribution;
+            final double[] result = next;
+            forEachBlock((block, from, to) -> {
+                double distance = 0.0;
+
+                for (int id = from; id < to; id++) {
+                    result[id] = product(current, id);
+                    distance += Math.abs(result[id] - stationary[id]);
+                }
+
+                partialDistances[block] = distance;
+            });
+
+            distances[step] = 0.5 * sum(partialDistances);
+            distribution = next;
+            next = current;
+        }
+
+        return distances;
+    }
+
+    /**
+     * Computes the Gelman-Rubin potential scale reduction factor for the given
+     * function of the states. Runs the given number of independent walkers,
+     * each starting from a state chosen uniformly at random, discards the
+     * first half of each walk and compares the variance of the function
+     * between walkers with the variance within them. Values close to 1
+     * indicate that the walkers have converged to the same distribution.
+     *
+     * @param function
+     *            the function of the states to compare, called once per state
+     * @param walkers
+     *            the number of walkers
+     * @param steps
+     *            the number of steps each walker takes
+     * @return the potential scale reduction factor
+     * @throws IllegalArgumentException
+     *             if function is null, walkers is less than 2 or steps is less
+     *             than 4
+     */
+    public double getGelmanRubinStatistic(ToDoubleFunction<? super T> function, int walkers,
+            int steps) {
+        if (function == null) {
+            throw new IllegalArgumentException("function must not be null");
+        }
+
+        return getGelmanRubinStatisticById(id -> function.applyAsDouble(this.chain.getKey(id)),
+                walkers, steps);
+    }
+
+    /**
+     * Computes the Gelman-Rubin potential scale reduction factor for the given
+     * function of the state ids.
+     *
+     * @param function
+     *            the function of the state ids to compare, called once per
+     *            state
+     * @param walkers
+     *            the number of walkers
+     * @param steps
+     *            the number of steps each walker takes
+     * @return the potential scale reduction factor
+     * @throws IllegalArgumentException
+     *             if function is null, walkers is less than 2 or steps is less
+     *             than 4
+     * @see #getGelmanRubinStatistic(ToDoubleFunction, int, int)
+     */
+    public double getGelmanRubinStatisticById(IntToDoubleFunction function, int walkers,
+            int steps) {
+        if (function == null) {
+            throw new IllegalArgumentException("function must not be null");
+        }
+
+        if (walkers < 2) {
+            throw new IllegalArgumentException("walkers must be at least 2");
+        }
+
+        if (steps < 4) {
+            throw new IllegalArgumentException("steps must be at least 4");
+        }
+
+        int stateCount = this.chain.getStateCount();
+
+        if (stateCount == 0) {
+            throw new IllegalArgumentException("The chain has no states");
+        }
+
+        double[] values = new double[stateCount];
+
+        for (int id = 0; id < stateCount; id++) {
+            values[id] = function.applyAsDouble(id);
+        }
+
+        // Each walker gets its own RNG, seeded up front so that results only
+        // depend on this object's RNG
+        long[] seeds = new long[walkers];
+
+        for (int walker = 0; walker < walkers; walker++) {
+            seeds[walker] = this.random.nextLong();
+        }
+
+        int kept = steps - steps / 2;
+        double[] means = new double[walkers];
+        double[] variances = new double[walkers];
+
+        IntStream.range(0, walkers).parallel().forEach(walker -> {
+            Random walkerRandom = new Random(seeds[walker]);
+            int current = walkerRandom.nextInt(stateCount);
+            double mean = 0.0;
+            double squares = 0.0;
+            int count = 0;
+
+            for (int step = 1; step <= steps; step++) {
+                current = this.chain.nextState(current, walkerRandom.nextDouble());
+
+                if (step > steps / 2) {
+                    // Welford's online mean and variance
+                    double value = values[current];
+                    count++;
+                    double delta = value - mean;
+                    mean += delta / count;
+                    squares += delta * (value - mean);
+                }
+            }
+
+            means[walker] = mean;
+            variances[walker] = squares / (kept - 1);
+        });
+
+        double meanOfMeans = 0.0;
+        double within = 0.0;
+
+        for (int walker = 0; walker < walkers; walker++) {
+            meanOfMeans += means[walker];
+            within += variances[walker];
+        }
+
+        meanOfMeans /= walkers;
+        within /= walkers;
+        double between = 0.0;
+
+        for (int walker = 0; walker < walkers; walker++) {
+            double delta = means[walker] - meanOfMeans;
+            between += delta * delta;
+        }
+
+        between = between * kept / (walkers - 1);
+
+        if (within == 0.0) {
+            return between == 0.0 ? 1.0 : Double.POSITIVE_INFINITY;
+        }
+
+        double pooled = (kept - 1) * within / kept + between / kept;
+        return Math.sqrt(pooled / within);
+    }
+
+    private double[] getStationary() {
+        if (this.stationaryDistribution != null) {
+            return this.stationaryDistribution;
+        }
+
+        int stateCount = this.chain.getStateCount();
+        double[] distribution = new double[stateCount];
+        double[] next = new double[stateCount];
+        Arrays.fill(distribution, 1.0 / stateCount);
+
+        double[] changes = new double[blockCount()];
+        double residual = Double.POSITIVE_INFINITY;
+        int iterations = 0;
+
+        while (iterations < this.maxIterations) {
+            final double[] current = distribution;
+            final double[] result = next;
+            forEachBlock((block, from, to) -> {
+                double change = 0.0;
+
+                for (int id = from; id < to; id++) {
+                    result[id] = 0.5 * (current[id] + product(current, id));
+                    change += Math.abs(result[id] - current[id]);
+                }
+
+                changes[block] = change;
+            });
+
+            distribution = next;
+            next = current;
+            iterations++;
+            residual = sum(changes);
+
+            if (residual <= this.tolerance) {
+                break;
+            }
+        }
+
+        this.stationaryConvergence = new Convergence(iterations, residual,
+                residual <= this.tolerance);
+        this.stationaryDistribution = distribution;
+        return distribution;
+    }
+
+    /**
+     * Gets the entry for the given state of the row vector multiplied by the
+     * transition matrix, computed from the transitions into the state.
+     */
+    private double product(double[] vector, int id) {
+        double sum = this.remainders[id] * vector[id];
+
+        for (int i = this.inOffsets[id]; i < this.inOffsets[id + 1]; i++) {
+            sum += this.inProbabilities[i] * vector[this.inSources[i]];
+        }
+
+        return sum;
+    }
+
+    private int blockCount() {
+        return (this.chain.getStateCount() + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    }
+
+    /**
+     * Runs the action on consecutive blocks of states, in parallel for large
+     * chains. Sums are collected per block and added up in block order, so
+     * results don't depend on how blocks are scheduled.
+     */
+    private void forEachBlock(BlockAction action) {
+        int stateCount = this.chain.getStateCount();
+        IntStream blocks = IntStream.range(0, blockCount());
+
+        if (stateCount >= PARALLEL_THRESHOLD) {
+            blocks = blocks.parallel();
+        }
+
+        blocks.forEach(block -> action.apply(block, block * BLOCK_SIZE,
+                Math.min(stateCount, (block + 1) * BLOCK_SIZE)));
+    }
+
+    private static double sum(double[] values) {
+        double sum = 0.0;
+
+        for (double value : values) {
+            sum += value;
+        }
+
+        return sum;
+    }
+
+    private void checkId(int id) {
+        if (id < 0 || id >= this.chain.getStateCount()) {
+            throw new StateNotDefinedException("No state has id " + id);
+        }
+    }
+
+    /**
+     * How an iterative computation ended: the number of iterations it took,
+     * the change between its last two iterates and whether that change was
+     * within the tolerance.
+     */
+    public static final class Convergence {
+
+        private final int iterations;
+
+        private final double residual;
+
+        private final boolean converged;
+
+        private Convergence(int iterations, double residual, boolean converged) {
+            this.iterations = iterations;
+            this.residual = residual;
+            this.converged = converged;
+        }
+
+        /**
+         * Gets the number of iterations that were run.
+         *
+         * @return the number of iterations
+         */
+        public int getIterations() {
+            return this.iterations;
+        }
+
+        /**
+         * Gets the change between the last two iterates.
+         *
+         * @return the residual, or infinity if there weren't two iterates to
+         *         compare
+         */
+        public double getResidual() {
+            return this.residual;
+        }
+
+        /**
+         * Checks whether the residual dropped to the tolerance before the
+         * maximum number of iterations ran out. If not, results computed from
+         * the last iterate may be inaccurate.
+         *
+         * @return true if the computation converged
+         */
+        public boolean isConverged() {
+            return this.converged;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s after %d iterations (residual %g)",
+                    this.converged ? "Converged" : "Not converged", this.iterations,
+                    this.residual);
+        }
+    }
+
+    /**
+     * An action on the states {@code from} to {@code to - 1}, which make up
+     * the given block.
+     */
+    @FunctionalInterface
+    private interface BlockAction {
+
+        void apply(int block, int from, int to);
+    }
+}
@@ -0,0 +1,79 @@
+package net.asgot.markovchain;
+
+/**
+ * The read-only structure of a Markov chain whose states are addressed by
+ * dense int ids in addition to their keys: the states and the transitions of
+ * each state, without a current state to walk from. Data sources that only
+ * describe a chain, e.g. for {@link CompiledMarkovChain#compile(ChainStructure)}
+ * or {@link DiskMarkovChain#create(ChainStructure, java.nio.file.Path, long)},
+ * only need to implement this.
+ * <p>
+ * Ids run from 0 to {@code getStateCount() - 1}. Chains that are derived from
+ * another {@code ChainStructure} (e.g. written to disk) keep its ids, so ids
+ * can be shared between representations of the same chain.
+ *
+ * @author Daniel Martin
+ *
+ * @param <T>
+ *            The type to use as the key for states.
+ * @see IndexedChain
+ */
+public interface ChainStructure<T> {
+
+    /**
+     * Gets the number of states, which is one more than the largest id.
+     *
+     * @return the number of states
+     */
+    int getStateCount();
+
+    /**
+     * Gets the id of the state with the given key.
+     *
+     * @param key
+     *            the key for the state
+     * @return the id
+     * @throws IllegalArgumentException
+     *             if key is null
+     * @throws StateNotDefinedException
+     *             if the state hasn't been defined
+     */
+    int getStateId(T key);
+
+    /**
+     * Gets the key of the state with the given id.
+     *
+     * @param id
+     *            the id of the state
+     * @return the key
+     * @throws StateNotDefinedException
+     *             if no state has the given id
+     */
+    T getKey(int id);
+
+    /**
+     * Gets the ids of all states the given state has a transition to.
+     *
+     * @param id
+     *            the id of the state
+     * @return the successor ids, in the same order as
+     *         {@link #getSuccessorProbabilities(int)}
+     * @throws StateNotDefinedException
+     *             if no state has the given id
+     */
+    int[] getSuccessorIds(int id);
+
+    /**
+     * Gets the probabilities of all transitions of the given state. If they
+     * sum to less than 1, the rest is the probability of staying on the same
+     * state.
+     *
+     * @param id
+     *            the id of the state
+     * @return the probabilities, in the same order as
+     *         {@link #getSuccessorIds(int)}
+     * @throws StateNotDefinedException
+     *             if no state has the given id
+     */
+    double[] getSuccessorProbabilities(int id);
+}
@@ -0,0 +1,737 @@
+package net.asgot.markovchain;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * A read-only Markov chain compiled into flat arrays. The transitions of all
+ * states are stored back to back in one array of target ids and one array of
+ * cumulative probabilities, with an offset array marking where each state's
+ * transitions start. A walk step is a binary search over a short slice of
+ * primitive arrays rather than a hop between heap objects.
+ * <p>
+ * States can be renumbered with {@link #reorder(StateOrdering)} so that states
+ * visited close together in a walk are also close together in memory.
+ *
+ * @author Daniel Martin
+ *
+ * @param <T>
+ *            The type to use as the key for states.
+ */
+public class CompiledMarkovChain<T> implements IndexedChain<T> {
+
+    /**
+     * Number of power iterations used to estimate visit frequencies.
+     */
+    private static final int VISIT_FREQUENCY_ITERATIONS = 20;
+
+    private final StateKeys<T> keys;
+
+    private final int[] offsets;
+
+    private final int[] targets;
+
+    private final double[] cumulative;
+
+    private final Random random;
+
+    private int currentState;
+
+    CompiledMarkovChain(StateKeys<T> keys, int[] offsets, int[] targets, double[] cumulative,
+            Random random) {
+        this.keys = keys;
+        this.offsets = offsets;
+        this.targets = targets;
+        this.cumulative = cumulative;
+        this.random = random;
+        this.currentState = -1;
+    }
+
+    /**
+     * Compiles the given chain. The states keep their ids. Uses
+     * {@code new Random()} as the RNG for choosing transitions to take.
+     *
+     * @param chain
+     *            the chain to compile
+     * @return the compiled chain
+     * @throws IllegalArgumentException
+     *             if chain is null
+     */
+    public static <T> CompiledMarkovChain<T> compile(ChainStructure<T> chain) {
+        return compile(chain, new Random());
+    }
+
+    /**
+     * Compiles the given chain. The states keep their ids.
+     *
+     * @param chain
+     *            the chain to compile
+     * @param random
+     *            source of random numbers for calculating the next state
+     * @return the compiled chain
+     * @throws IllegalArgumentException
+     *             if chain or random is null
+     */
+    public static <T> CompiledMarkovChain<T> compile(ChainStructure<T> chain, Random random) {
+        if (chain == null) {
+            throw new IllegalArgumentException("chain must not be null");
+        }
+
+        if (random == null) {
+            throw new IllegalArgumentException("random must not be null");
+        }
+
+        int stateCount = chain.getStateCount();
+        List<T> keys = new ArrayList<>(stateCount);
+        int[] offsets = new int[stateCount + 1];
+        int[][] successorIds = new int[stateCount][];
+        double[][] successorProbabilities = new double[stateCount][];
+
+        for (int id = 0; id < stateCount; id++) {
+            keys.add(chain.getKey(id));
+            successorIds[id] = chain.getSuccessorIds(id);
+            successorProbabilities[id] = chain.getSuccessorProbabilities(id);
+            offsets[id + 1] = offsets[id] + successorIds[id].length;
+        }
+
+        int[] targets = new int[offsets[stateCount]];
+        double[] cumulative = new double[offsets[stateCount]];
+
+        for (int id = 0; id < stateCount; id++) {
+            System.arraycopy(successorIds[id], 0, targets, offsets[id], successorIds[id].length);
+            double sum = 0.0;
+
+            for (int i = 0; i < successorProbabilities[id].length; i++) {
+                sum += successorProbabilities[id][i];
+                cumulative[offsets[id] + i] = sum;
+            }
+
+            successorIds[id] = null;
+            successorProbabilities[id] = null;
+        }
+
+        return new CompiledMarkovChain<>(new StateKeys.ListStateKeys<>(keys), offsets, targets,
+                cumulative, random);
+    }
+
+    /**
+     * Creates a {@code CompiledMarkovChain} from strings, with the same
+     * transitions and probabilities as {@link MarkovChain#fromStrings(Iterator)}.
+     * The strings are kept in a {@link TokenDictionary} and transitions are
+     * counted on int ids, so no per-word objects are created; words are only
+     * decoded when asked for, e.g. by {@link #getCurrentState()}. Uses
+     * {@code new Random()} as the RNG for choosing transitions to take.
+     *
+     * @param iter
+     *            an iterator of strings
+     * @return the generated chain
+     * @throws IllegalArgumentException
+     *             if {@code iter} is null or contains null
+     */
+    public static CompiledMarkovChain<String> fromStrings(Iterator<String> iter) {
+        return fromStrings(iter, new Random());
+    }
+
+    /**
+     * Creates a {@code CompiledMarkovChain} from strings, with the same
+     * transitions and probabilities as {@link MarkovChain#fromStrings(Iterator)}.
+     * The strings are kept in a {@link TokenDictionary} and transitions are
+     * counted on int ids, so no per-word objects are created; words are only
+     * decoded when asked for, e.g. by {@link #getCurrentState()}.
+     *
+     * @param iter
+     *            an iterator of strings
+     * @param random
+     *            source of random numbers for calculating the next state
+     * @return the generated chain
+     * @throws IllegalArgumentException
+     *             if {@code iter} or random is null or iter contains null
+     */
+    public static CompiledMarkovChain<String> fromStrings(Iterator<String> iter, Random random) {
+        if (iter == null) {
+            throw new IllegalArgumentException("iter must not be null");
+        }
+
+        if (random == null) {
+            throw new IllegalArgumentException("random must not be null");
+        }
+
+        TokenDictionary dictionary = new TokenDictionary();
+        PairCounter pairs = new PairCounter();
+        int previous = -1;
+
+        while (iter.hasNext()) {
+            int current = dictionary.add(iter.next());
+
+            if (previous >= 0) {
+                pairs.increment(previous, current);
+            }
+
+            previous = current;
+        }
+
+        int stateCount = dictionary.size();
+        int[] offsets = new int[stateCount + 1];
+        long[] totals = new long[stateCount];
+
+        for (int i = 0; i < pairs.keys.length; i++) {
+            if (pairs.keys[i] != PairCounter.EMPTY) {
+                int from = (int) (pairs.keys[i] >>> 32);
+                offsets[from + 1]++;
+                totals[from] += pairs.counts[i];
+            }
+        }
+
+        for (int id = 0; id < stateCount; id++) {
+            offsets[id + 1] += offsets[id];
+        }
+
+        int[] targets = new int[offsets[stateCount]];
+        double[] cumulative = new double[offsets[stateCount]];
+        int[] next = Arrays.copyOf(offsets, stateCount);
+
+        for (int i = 0; i < pairs.keys.length; i++) {
+            if (pairs.keys[i] != PairCounter.EMPTY) {
+                int from = (int) (pairs.keys[i] >>> 32);
+                targets[next[from]] = (int) pairs.keys[i];
+                cumulative[next[from]] = pairs.counts[i];
+                next[from]++;
+            }
+        }
+
+        for (int id = 0; id < stateCount; id++) {
+            double sum = 0.0;
+
+            for (int i = offsets[id]; i < offsets[id + 1]; i++) {
+                sum += cumulative[i];
+                cumulative[i] = sum / totals[id];
+            }
+        }
+
+        return new CompiledMarkovChain<>(dictionary, offsets, targets, cumulative, random);
+    }
+
+    /**
+     * Returns a copy of this chain with the states renumbered in the given
+     * order. The copy uses the same RNG and has no current state.
+     *
+     * @param ordering
+     *            the order to renumber the states in
+     * @return the renumbered chain
+     * @throws IllegalArgumentException
+     *             if ordering is null
+     */
+    public CompiledMarkovChain<T> reorder(StateOrdering ordering) {
+        if (ordering == null) {
+            throw new IllegalArgumentException("ordering must not be null");
+        }
+
+        switch (ordering) {
+        case CUTHILL_MCKEE:
+            return relabel(cuthillMcKeeOrder());
+        case VISIT_FREQUENCY:
+            return relabel(visitFrequencyOrder());
+        default:
+            throw new IllegalArgumentException("Unknown ordering " + ordering);
+        }
+    }
+
+    /**
+     * Returns a copy of this chain with the states renumbered so that the
+     * state with id {@code order[i]} gets id {@code i}. The copy uses the same
+     * RNG and has no current state.
+     *
+     * @param order
+     *            the old ids of the states in their new order
+     * @return the renumbered chain
+     * @throws IllegalArgumentException
+     *             if order isn't a permutation of the state ids
+     */
+    public CompiledMarkovChain<T> relabel(int[] order) {
+        int stateCount = getStateCount();
+
+        if (order == null || order.length != stateCount) {
+            throw new IllegalArgumentException("order must contain every state id once");
+        }
+
+        int[] newIds = new int[stateCount];
+        Arrays.fill(newIds, -1);
+
+        for (int i = 0; i < stateCount; i++) {
+            if (order[i] < 0 || order[i] >= stateCount || newIds[order[i]] >= 0) {
+                throw new IllegalArgumentException("order must contain every state id once");
+            }
+
+            newIds[order[i]] = i;
+        }
+
+        int[] newOffsets = new int[stateCount + 1];
+        int[] newTargets = new int[this.targets.length];
+        double[] newCumulative = new double[this.cumulative.length];
+
+        for (int i = 0; i < stateCount; i++) {
+            int old = order[i];
+            int start = this.offsets[old];
+            int count = this.offsets[old + 1] - start;
+
+            newOffsets[i + 1] = newOffsets[i] + count;
+
+            for (int j = 0; j < count; j++) {
+                newTargets[newOffsets[i] + j] = newIds[this.targets[start + j]];
+            }
+
+            System.arraycopy(this.cumulative, start, newCumulative, newOffsets[i], count);
+        }
+
+        // The keys are renumbered rather than copied, so a chain backed by a
+        // TokenDictionary keeps resolving keys through it
+        return new CompiledMarkovChain<>(
+                StateKeys.PermutedStateKeys.of(this.keys, order.clone(), newIds), newOffsets,
+                newTargets, newCumulative, this.random);
+    }
+
+    /**
+     * Sets the current state. The state must be defined.
+     *
+     * @param key
+     *            the key for the state
+     * @throws StateNotDefinedException
+     *             if the given state isn't defined
+     */
+    public void setState(T key) {
+        int id = this.keys.idOf(key);
+
+        if (id < 0) {
+            throw new StateNotDefinedException("Cannot set state because it hasn't been defined");
+        }
+
+        this.currentState = id;
+    }
+
+    /**
+     * Sets the current state by id.
+     *
+     * @param id
+     *            the id of the state
+     * @throws StateNotDefinedException
+     *             if no state has the given id
+     */
+    @Override
+    public void setStateById(int id) {
+        checkId(id);
+        this.currentState = id;
+    }
+
+    /**
+     * Gets the current state.
+     *
+     * @return the current state or {@code null} if no current state exists
+     */
+    public T getCurrentState() {
+        if (this.currentState >= 0) {
+            return this.keys.keyOf(this.currentState);
+        }
+
+        return null;
+    }
+
+    /**
+     * Gets the id of the current state.
+     *
+     * @return the id of the current state or -1 if no current state exists
+     */
+    @Override
+    public int getCurrentStateId() {
+        return this.currentState;
+    }
+
+    /**
+     * Checks whether the state given with the given key has been defined.
+     *
+     * @param key
+     *            the key of the state
+     * @return true if the state has been defined, false otherwise
+     */
+    public boolean containsState(T key) {
+        return this.keys.idOf(key) >= 0;
+    }
+
+    /**
+     * Gets the number of defined states.
+     *
+     * @return the number of states
+     */
+    @Override
+    public int getStateCount() {
+        return this.offsets.length - 1;
+    }
+
+    /**
+     * Gets the number of transitions of all states.
+     *
+     * @return the number of transitions
+     */
+    public int getTransitionCount() {
+        return this.targets.length;
+    }
+
+    /**
+     * Gets the id of the state with the given key.
+     *
+     * @param key
+     *            the key for the state
+     * @return the id
+     * @throws IllegalArgumentException
+     *             if key is null
+     * @throws StateNotDefinedException
+     *             if the state hasn't been defined
+     */
+    @Override
+    public int getStateId(T key) {
+        if (key == null) {
+            throw new IllegalArgumentException("key must not be null");
+        }
+
+        int id = this.keys.idOf(key);
+
+        if (id < 0) {
+            throw new StateNotDefinedException("State hasn't been defined");
+        }
+
+        return id;
+    }
+
+    /**
+     * Gets the key of the state with the given id.
+     *
+     * @param id
+     *            the id of the state
+     * @return the key
+     * @throws StateNotDefinedException
+     *             if no state has the given id
+     */
+    @Override
+    public T getKey(int id) {
+        checkId(id);
+        return this.keys.keyOf(id);
+    }
+
+    /**
+     * Gets all the transition states for the state with the given key
+     *
+     * @param key
+     *            the key for the state
+     * @return a set of states
+     * @throws IllegalArgumentException
+     *             if key is null
+     * @throws StateNotDefinedException
+     *             if the state isn't defined
+     */
+    public Set<T> getTransitionsForState(T key) {
+        int id = getStateId(key);
+        Set<T> transitionStates = new HashSet<>();
+
+        for (int i = this.offsets[id]; i < this.offsets[id + 1]; i++) {
+            transitionStates.add(this.keys.keyOf(this.targets[i]));
+        }
+
+        return transitionStates;
+    }
+
+    /**
+     * Gets the ids of all states the given state has a transition to.
+     *
+     * @param id
+     *            the id of the state
+     * @return the successor ids
+     * @throws StateNotDefinedException
+     *             if no state has the given id
+     */
+    @Override
+    public int[] getSuccessorIds(int id) {
+        checkId(id);
+        return Arrays.copyOfRange(this.targets, this.offsets[id], this.offsets[id + 1]);
+    }
+
+    /**
+     * Gets the probabilities of all transitions of the given state.
+     *
+     * @param id
+     *            the id of the state
+     * @return the probabilities
+     * @throws StateNotDefinedException
+     *             if no state has the given id
+     */
+    @Override
+    public double[] getSuccessorProbabilities(int id) {
+        checkId(id);
+        int start = this.offsets[id];
+        double[] probabilities = new double[this.offsets[id + 1] - start];
+        double previous = 0.0;
+
+        for (int i = 0; i < probabilities.length; i++) {
+            probabilities[i] = this.cumulative[start + i] - previous;
+            previous = this.cumulative[start + i];
+        }
+
+        return probabilities;
+    }
+
+    /**
+     * Transitions from the current state to another state based on the
+     * probabilities of the defined transitions. If the current state is
+     * {@code null}, then the new state will also be {@code null}.
+     */
+    @Override
+    public void transition() {
+        if (this.currentState < 0) {
+            return;
+        }
+
+        this.currentState = nextState(this.currentState, this.random.nextDouble());
+    }
+
+    /**
+     * Finds the first transition of the given state whose cumulative
+     * probability is greater than rand, staying on the state if there is none.
+     */
+    int nextState(int id, double rand) {
+        int low = this.offsets[id];
+        int end = this.offsets[id + 1];
+        int high = end;
+
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+
+            if (this.cumulative[mid] > rand) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+
+        return low < end ? this.targets[low] : id;
+    }
+
+    /**
+     * Gets the keys of the states.
+     */
+    StateKeys<T> getStateKeys() {
+        return this.keys;
+    }
+
+    /**
+     * Gets the offsets of each state's transitions; the transitions of state
+     * {@code id} are at indices {@code offsets[id]} to
+     * {@code offsets[id + 1] - 1}. The array is shared and must not be
+     * modified.
+     */
+    int[] getOffsets() {
+        return this.offsets;
+    }
+
+    /**
+     * Gets the to-state ids of all transitions. The array is shared and must
+     * not be modified.
+     */
+    int[] getTargets() {
+        return this.targets;
+    }
+
+    /**
+     * Gets the cumulative probabilities of all transitions, restarting from 0
+     * for each state. The array is shared and must not be modified.
+     */
+    double[] getCumulativeProbabilities() {
+        return this.cumulative;
+    }
+
+    private void checkId(int id) {
+        if (id < 0 || id >= getStateCount()) {
+            throw new StateNotDefinedException("No state has id " + id);
+        }
+    }
+
+    private int[] cuthillMcKeeOrder() {
+        int stateCount = getStateCount();
+        long[] byDegree = new long[stateCount];
+
+        for (int id = 0; id < stateCount; id++) {
+            byDegree[id] = byDegree(id);
+        }
+
+        Arrays.sort(byDegree);
+
+        int[] order = new int[stateCount];
+        boolean[] visited = new boolean[stateCount];
+        long[] successors = new long[16];
+        int head = 0;
+        int tail = 0;
+
+        for (long packed : byDegree) {
+            int start = (int) packed;
+
+            if (visited[start]) {
+                continue;
+            }
+
+            visited[start] = true;
+            order[tail++] = start;
+
+            while (head < tail) {
+                int id = order[head++];
+                int count = 0;
+
+                if (successors.length < degree(id)) {
+                    successors = new long[degree(id)];
+                }
+
+                for (int i = this.offsets[id]; i < this.offsets[id + 1]; i++) {
+                    int target = this.targets[i];
+
+                    if (!visited[target]) {
+                        visited[target] = true;
+                        successors[count++] = byDegree(target);
+                    }
+                }
+
+                Arrays.sort(successors, 0, count);
+
+                for (int i = 0; i < count; i++) {
+                    order[tail++] = (int) successors[i];
+                }
+            }
+        }
+
+        return order;
+    }
+
+    /**
+     * Packs the degree and id of a state into a long that sorts by degree
+     * first and id second.
+     */
+    private long byDegree(int id) {
+        return ((long) degree(id) << 32) | id;
+    }
+
+    private int degree(int id) {
+        return this.offsets[id + 1] - this.offsets[id];
+    }
+
+    private int[] visitFrequencyOrder() {
+        int stateCount = getStateCount();
+        double[] frequency = new double[stateCount];
+        double[] next = new double[stateCount];
+        Arrays.fill(frequency, 1.0 / stateCount);
+
+        for (int iteration = 0; iteration < VISIT_FREQUENCY_ITERATIONS; iteration++) {
+            Arrays.fill(next, 0.0);
+
+            for (int id = 0; id < stateCount; id++) {
+                double previous = 0.0;
+
+                for (int i = this.offsets[id]; i < this.offsets[id + 1]; i++) {
+                    next[this.targets[i]] += frequency[id] * (this.cumulative[i] - previous);
+                    previous = this.cumulative[i];
+                }
+
+                next[id] += frequency[id] * Math.max(0.0, 1.0 - previous);
+            }
+
+            double[] swap = frequency;
+            frequency = next;
+            next = swap;
+        }
+
+        // Sorts by decreasing frequency, packing a float-precision frequency
+        // and the id into one long to avoid boxing
+        long[] packed = new long[stateCount];
+
+        for (int id = 0; id < stateCount; id++) {
+            int bits = Float.floatToIntBits((float) frequency[id]);
+            packed[id] = ((long) (Integer.MAX_VALUE - bits) << 32) | id;
+        }
+
+        Arrays.sort(packed);
+
+        int[] result = new int[stateCount];
+
+        for (int i = 0; i < stateCount; i++) {
+            result[i] = (int) packed[i];
+        }
+
+        return result;
+    }
+
+    /**
+     * Counts pairs of int ids in an open-addressing table keyed by
+     * {@code from << 32 | to}.
+     */
+    private static final class PairCounter {
+
+        private static final long EMPTY = -1L;
+
+        private long[] keys;
+
+        private int[] counts;
+
+        private int size;
+
+        private PairCounter() {
+            this.keys = new long[1 << 10];
+            this.counts = new int[1 << 10];
+            this.size = 0;
+            Arrays.fill(this.keys, EMPTY);
+        }
+
+        private void increment(int from, int to) {
+            long key = ((long) from << 32) | to;
+            int slot = find(this.keys, key);
+
+            if (this.keys[slot] == EMPTY) {
+                this.keys[slot] = key;
+                this.size++;
+
+                if (this.size * 2 > this.keys.length) {
+                    grow();
+                    slot = find(this.keys, key);
+                }
+            }
+
+            this.counts[slot]++;
+        }
+
+        private void grow() {
+            long[] oldKeys = this.keys;
+            int[] oldCounts = this.counts;
+            this.keys = new long[oldKeys.length * 2];
+            this.counts = new int[oldKeys.length * 2];
+            Arrays.fill(this.keys, EMPTY);
+
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != EMPTY) {
+                    int slot = find(this.keys, oldKeys[i]);
+                    this.keys[slot] = oldKeys[i];
+                    this.counts[slot] = oldCounts[i];
+                }
+            }
+        }
+
+        private static int find(long[] keys, long key) {
+            int mask = keys.length - 1;
+            long hash = key * 0x9e3779b97f4a7c15L;
+            int slot = (int) (hash >>> 32) & mask;
+
+            while (keys[slot] != EMPTY && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+
+            return slot;
+        }
+    }
+}
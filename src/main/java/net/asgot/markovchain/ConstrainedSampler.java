@@ -0,0 +1,528 @@
+package net.asgot.markovchain;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Samples walks on a Markov chain conditioned on a constraint, without
+ * rejection sampling. A constraint consists of a maximum number of steps, a set
+ * of states to avoid and optionally a set of target states:
+ * <ul>
+ * <li>With targets, a walk ends as soon as it reaches a target and must do so
+ * within the maximum number of steps.</li>
+ * <li>Without targets, a walk takes exactly the maximum number of steps.</li>
+ * </ul>
+ * In both cases the walk never visits a state to avoid. For each constraint,
+ * the probability of satisfying it from every state with {@code r} steps left
+ * is precomputed backwards from the end of the walk. Each step then draws only
+ * among successors that can still satisfy the constraint, weighted by that
+ * probability, so walks follow exactly the distribution of the chain
+ * conditioned on the constraint.
+ * <p>
+ * Weights are stored as natural logarithms. That way, long walks and rare
+ * constraints don't underflow to a probability of 0, even when the weights of
+ * different states are too far apart to share a common scale. Each sum over
+ * successors is taken relative to its largest term.
+ * <p>
+ * The weights of a constraint take {@code (maxSteps + 1) * stateCount * 8}
+ * bytes, e.g. 400 MB for 50 steps on a chain with a million states. They are
+ * cached for the most recently used constraints in an LRU cache bounded by
+ * bytes. Weights larger than the whole cache are computed for each call and
+ * not cached.
+ *
+ * @author Daniel Martin
+ *
+ * @param <T>
+ *            The type to use as the key for states.
+ */
+public class ConstrainedSampler<T> {
+
+    /**
+     * Default maximum number of bytes of weights to cache.
+     */
+    public static final long DEFAULT_CACHE_CAPACITY = 64L << 20;
+
+    /**
+     * Approximate heap overhead of a cached constraint besides its rows.
+     */
+    static final int WEIGHTS_OVERHEAD = 128;
+
+    /**
+     * Approximate heap overhead of one row of weights besides its entries.
+     */
+    static final int ROW_OVERHEAD = 24;
+
+    private final CompiledMarkovChain<T> chain;
+
+    private final Random random;
+
+    private final LinkedHashMap<Constraint, Weights> cache;
+
+    private final long cacheCapacity;
+
+    private long cacheSize;
+
+    /**
+     * Constructs a {@code ConstrainedSampler} for the given chain. Uses
+     * {@code new Random()} as the RNG.
+     *
+     * @param chain
+     *            the chain to sample walks from
+     * @throws IllegalArgumentException
+     *             if chain is null
+     */
+    public ConstrainedSampler(ChainStructure<T> chain) {
+        this(chain, new Random(), DEFAULT_CACHE_CAPACITY);
+    }
+
+    /**
+     * Constructs a {@code ConstrainedSampler} for the given chain. The chain is
+     * compiled unless it is a {@link CompiledMarkovChain} already, so later
+     * changes to it aren't seen by the sampler.
+     *
+     * @param chain
+     *            the chain to sample walks from
+     * @param random
+     *            source of random numbers for sampling walks
+     * @param cacheCapacity
+     *            the maximum number of bytes of weights to cache
+     * @throws IllegalArgumentException
+     *             if chain or random is null or cacheCapacity is negative
+     */
+    public ConstrainedSampler(ChainStructure<T> chain, Random random, long cacheCapacity) {
+        if (chain == null) {
+            throw new IllegalArgumentException("chain must not be null");
+        }
+
+        if (random == null) {
+            throw new IllegalArgumentException("random must not be null");
+        }
+
+        if (cacheCapacity < 0) {
+            throw new IllegalArgumentException("cacheCapacity must not be negative");
+        }
+
+        this.chain = chain instanceof CompiledMarkovChain ? (CompiledMarkovChain<T>) chain
+                : CompiledMarkovChain.compile(chain);
+        this.random = random;
+        this.cache = new LinkedHashMap<>(16, 0.75f, true);
+        this.cacheCapacity = cacheCapacity;
+        this.cacheSize = 0;
+    }
+
+    /**
+     * Samples a walk from the given state that satisfies the constraint.
+     *
+     * @param start
+     *            the state to start from
+     * @param targets
+     *            the states the walk must end in, or an empty collection to
+     *            walk exactly maxSteps steps
+     * @param avoid
+     *            the states the walk must not visit
+     * @param maxSteps
+     *            the maximum number of steps
+     * @return the states of the walk, starting with start
+     * @throws IllegalArgumentException
+     *             if any argument is null, maxSteps is negative or the
+     *             constraint can't be satisfied from start
+     * @throws StateNotDefinedException
+     *             if any of the given states aren't defined
+     */
+    public List<T> sample(T start, Collection<T> targets, Collection<T> avoid, int maxSteps) {
+        if (targets == null || avoid == null) {
+            throw new IllegalArgumentException("targets/avoid must not be null");
+        }
+
+        int[] walk = sampleIds(this.chain.getStateId(start), toBitSet(targets), toBitSet(avoid),
+                maxSteps);
+        List<T> states = new ArrayList<>(walk.length);
+
+        for (int id : walk) {
+            states.add(this.chain.getKey(id));
+        }
+
+        return states;
+    }
+
+    /**
+     * Samples a walk from the given state id that satisfies the constraint.
+     *
+     * @param start
+     *            the id of the state to start from
+     * @param targets
+     *            the ids of the states the walk must end in, or an empty set to
+     *            walk exactly maxSteps steps
+     * @param avoid
+     *            the ids of the states the walk must not visit
+     * @param maxSteps
+     *            the maximum number of steps
+     * @return the ids of the states of the walk, starting with start
+     * @throws IllegalArgumentException
+     *             if any argument is null, maxSteps is negative or the
+     *             constraint can't be satisfied from start
+     * @throws StateNotDefinedException
+     *             if no state has one of the given ids
+     */
+    public int[] sampleIds(int start, BitSet targets, BitSet avoid, int maxSteps) {
+        double[][] weights = getWeights(start, targets, avoid, maxSteps).rows;
+
+        if (weights[maxSteps][start] == Double.NEGATIVE_INFINITY) {
+            throw new IllegalArgumentException(
+                    "The constraint can't be satisfied from the start state");
+        }
+
+        boolean walkToTarget = !targets.isEmpty();
+        int[] offsets = this.chain.getOffsets();
+        int[] successors = this.chain.getTargets();
+        double[] cumulative = this.chain.getCumulativeProbabilities();
+        int[] walk = new int[maxSteps + 1];
+        int length = 0;
+        int current = start;
+        walk[length++] = current;
+
+        for (int remaining = maxSteps; remaining > 0; remaining--) {
+            if (walkToTarget && targets.get(current)) {
+                break;
+            }
+
+            // Successors are weighted relative to the most likely one, so the
+            // largest weight is 1 and the total doesn't underflow
+            double[] next = weights[remaining - 1];
+            double max = maxLogWeight(current, next);
+            double total = 0.0;
+            double previous = 0.0;
+
+            for (int i = offsets[current]; i < offsets[current + 1]; i++) {
+                double c = Math.min(cumulative[i], 1.0);
+
+                if (c > previous) {
+                    total += (c - previous) * Math.exp(next[successors[i]] - max);
+                    previous = c;
+                }
+            }
+
+            double stay = (1.0 - previous) * Math.exp(next[current] - max);
+            total += stay;
+
+            double rand = this.random.nextDouble() * total;
+            int chosen = current;
+            previous = 0.0;
+
+            for (int i = offsets[current]; i < offsets[current + 1]; i++) {
+                double c = Math.min(cumulative[i], 1.0);
+
+                if (c <= previous) {
+                    continue;
+                }
+
+                double weight = (c - previous) * Math.exp(next[successors[i]] - max);
+                previous = c;
+
+                if (weight > 0.0) {
+                    chosen = successors[i];
+                    rand -= weight;
+
+                    if (rand < 0.0) {
+                        break;
+                    }
+                }
+            }
+
+            // The remaining probability of staying put is drawn last, and
+            // rounding errors fall back on the last valid successor
+            if (rand >= 0.0 && stay > 0.0) {
+                chosen = current;
+            }
+
+            current = chosen;
+            walk[length++] = current;
+        }
+
+        return length == walk.length ? walk : Arrays.copyOf(walk, length);
+    }
+
+    /**
+     * Gets the probability that a walk from the given state satisfies the
+     * constraint.
+     *
+     * @param start
+     *            the id of the state to start from
+     * @param targets
+     *            the ids of the states the walk must end in, or an empty set to
+     *            walk exactly maxSteps steps
+     * @param avoid
+     *            the ids of the states the walk must not visit
+     * @param maxSteps
+     *            the maximum number of steps
+     * @return the probability, which may underflow to 0 for very unlikely
+     *         constraints
+     * @throws IllegalArgumentException
+     *             if any argument is null or maxSteps is negative
+     * @throws StateNotDefinedException
+     *             if no state has one of the given ids
+     * @see #getLogProbability(int, BitSet, BitSet, int)
+     */
+    public double getProbability(int start, BitSet targets, BitSet avoid, int maxSteps) {
+        return Math.exp(getLogProbability(start, targets, avoid, maxSteps));
+    }
+
+    /**
+     * Gets the natural logarithm of the probability that a walk from the given
+     * state satisfies the constraint. Unlike the probability, this doesn't
+     * underflow for very unlikely constraints.
+     *
+     * @param start
+     *            the id of the state to start from
+     * @param targets
+     *            the ids of the states the walk must end in, or an empty set to
+     *            walk exactly maxSteps steps
+     * @param avoid
+     *            the ids of the states the walk must not visit
+     * @param maxSteps
+     *            the maximum number of steps
+     * @return the log probability, or negative infinity if the constraint
+     *         can't be satisfied
+     * @throws IllegalArgumentException
+     *             if any argument is null or maxSteps is negative
+     * @throws StateNotDefinedException
+     *             if no state has one of the given ids
+     */
+    public double getLogProbability(int start, BitSet targets, BitSet avoid, int maxSteps) {
+        return getWeights(start, targets, avoid, maxSteps).rows[maxSteps][start];
+    }
+
+    /**
+     * Gets the number of constraints whose weights are currently cached.
+     */
+    int getCachedConstraintCount() {
+        return this.cache.size();
+    }
+
+    /**
+     * Gets the approximate number of bytes of weights currently cached.
+     */
+    long getCacheSize() {
+        return this.cacheSize;
+    }
+
+    /**
+     * Gets the approximate number of bytes the weights of a constraint take.
+     */
+    static long weightsSize(int stateCount, int maxSteps) {
+        return WEIGHTS_OVERHEAD + (maxSteps + 1L) * (ROW_OVERHEAD + 8L * stateCount);
+    }
+
+    private Weights getWeights(int start, BitSet targets, BitSet avoid, int maxSteps) {
+        if (targets == null || avoid == null) {
+            throw new IllegalArgumentException("targets/avoid must not be null");
+        }
+
+        if (maxSteps < 0) {
+            throw new IllegalArgumentException("maxSteps must not be negative");
+        }
+
+        int stateCount = this.chain.getStateCount();
+
+        if (start < 0 || start >= stateCount || targets.length() > stateCount
+                || avoid.length() > stateCount) {
+            throw new StateNotDefinedException("Ids must belong to defined states");
+        }
+
+        Constraint constraint = new Constraint(targets, avoid, maxSteps);
+        Weights weights = this.cache.get(constraint);
+
+        if (weights != null) {
+            return weights;
+        }
+
+        constraint = constraint.copy();
+        weights = computeWeights(constraint);
+        long size = weightsSize(stateCount, maxSteps);
+
+        if (size <= this.cacheCapacity) {
+            Iterator<Weights> it = this.cache.values().iterator();
+
+            while (this.cacheSize + size > this.cacheCapacity) {
+                this.cacheSize -= it.next().size;
+                it.remove();
+            }
+
+            weights.size = size;
+            this.cache.put(constraint, weights);
+            this.cacheSize += size;
+        }
+
+        return weights;
+    }
+
+    /**
+     * Computes, for every r up to the maximum number of steps and every state,
+     * the log of the probability that a walk from the state with r steps left
+     * satisfies the constraint.
+     */
+    private Weights computeWeights(Constraint constraint) {
+        int stateCount = this.chain.getStateCount();
+        int[] offsets = this.chain.getOffsets();
+        int[] successors = this.chain.getTargets();
+        double[] cumulative = this.chain.getCumulativeProbabilities();
+        boolean walkToTarget = !constraint.targets.isEmpty();
+        double[][] weights = new double[constraint.maxSteps + 1][];
+
+        double[] last = new double[stateCount];
+
+        for (int id = 0; id < stateCount; id++) {
+            boolean satisfied = !constraint.avoid.get(id)
+                    && (!walkToTarget || constraint.targets.get(id));
+            last[id] = satisfied ? 0.0 : Double.NEGATIVE_INFINITY;
+        }
+
+        weights[0] = last;
+
+        for (int r = 1; r <= constraint.maxSteps; r++) {
+            double[] current = new double[stateCount];
+
+            for (int id = 0; id < stateCount; id++) {
+                if (constraint.avoid.get(id)) {
+                    current[id] = Double.NEGATIVE_INFINITY;
+                    continue;
+                }
+
+                if (walkToTarget && constraint.targets.get(id)) {
+                    current[id] = 0.0;
+                    continue;
+                }
+
+                double max = maxLogWeight(id, last);
+
+                if (max == Double.NEGATIVE_INFINITY) {
+                    current[id] = max;
+                    continue;
+                }
+
+                double sum = 0.0;
+                double previous = 0.0;
+
+                for (int i = offsets[id]; i < offsets[id + 1]; i++) {
+                    double c = Math.min(cumulative[i], 1.0);
+
+                    if (c > previous) {
+                        sum += (c - previous) * Math.exp(last[successors[i]] - max);
+                        previous = c;
+                    }
+                }
+
+                sum += (1.0 - previous) * Math.exp(last[id] - max);
+                current[id] = max + Math.log(sum);
+            }
+
+            weights[r] = current;
+            last = current;
+        }
+
+        return new Weights(weights);
+    }
+
+    /**
+     * Gets the largest log weight among the states a state can move to with a
+     * positive probability, including itself for the remaining probability.
+     *
+     * @return the largest log weight, or negative infinity if none of the
+     *         states can satisfy the constraint
+     */
+    private double maxLogWeight(int id, double[] logWeights) {
+        int[] offsets = this.chain.getOffsets();
+        int[] successors = this.chain.getTargets();
+        double[] cumulative = this.chain.getCumulativeProbabilities();
+        double max = Double.NEGATIVE_INFINITY;
+        double previous = 0.0;
+
+        for (int i = offsets[id]; i < offsets[id + 1]; i++) {
+            double c = Math.min(cumulative[i], 1.0);
+
+            if (c > previous) {
+                max = Math.max(max, logWeights[successors[i]]);
+                previous = c;
+            }
+        }
+
+        return previous < 1.0 ? Math.max(max, logWeights[id]) : max;
+    }
+
+    private BitSet toBitSet(Collection<T> keys) {
+        BitSet ids = new BitSet(this.chain.getStateCount());
+
+        for (T key : keys) {
+            ids.set(this.chain.getStateId(key));
+        }
+
+        return ids;
+    }
+
+    /**
+     * The weights of a constraint: one row of log probabilities per number of
+     * steps left.
+     */
+    private static final class Weights {
+
+        private final double[][] rows;
+
+        /**
+         * Approximate size in bytes, set when the weights are cached.
+         */
+        private long size;
+
+        private Weights(double[][] rows) {
+            this.rows = rows;
+        }
+    }
+
+    /**
+     * Cache key for the weights of a constraint.
+     */
+    private static final class Constraint {
+
+        private final BitSet targets;
+
+        private final BitSet avoid;
+
+        private final int maxSteps;
+
+        private Constraint(BitSet targets, BitSet avoid, int maxSteps) {
+            this.targets = targets;
+            this.avoid = avoid;
+            this.maxSteps = maxSteps;
+        }
+
+        /**
+         * Copies the sets, so that the key can't be changed by the caller
+         * once it's in the cache.
+         */
+        private Constraint copy() {
+            return new Constraint((BitSet) this.targets.clone(), (BitSet) this.avoid.clone(),
+                    this.maxSteps);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Constraint)) {
+                return false;
+            }
+
+            Constraint other = (Constraint) obj;
+            return this.maxSteps == other.maxSteps && this.targets.equals(other.targets)
+                    && this.avoid.equals(other.avoid);
+        }
+
+        @Override
+        public int hashCode() {
+            return (this.targets.hashCode() * 31 + this.avoid.hashCode()) * 31 + this.maxSteps;
+        }
+    }
+}
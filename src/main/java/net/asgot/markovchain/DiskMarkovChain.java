@@ -0,0 +1,991 @@
+package net.asgot.markovchain;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * A read-only Markov chain whose transitions are kept in a segment file on
+ * disk rather than in the heap. The transitions of each state are stored as
+ * one block, and the file ends with an index of the blocks by state id. Blocks
+ * are loaded on demand into a size-bounded cache of compact sampling
+ * tables, so only the hot part of the chain occupies memory.
+ * <p>
+ * Chains are written with a {@link Writer} or created from an existing
+ * {@link ChainStructure} with {@link #create(ChainStructure, Path, long)}, which
+ * keeps its state ids.
+ * <p>
+ * Only the transitions are moved to disk. The keys of the states stay on the
+ * heap as a list plus a hash map from key to id, which costs roughly 50 to 100
+ * bytes per state plus the keys themselves. The index and the cache's table of
+ * blocks by id add another 16 to 20 bytes per state. A chain with billions of
+ * transitions over a few million states fits in a few GB of heap, but one
+ * with hundreds of millions of states doesn't.
+ * <p>
+ * {@code DiskMarkovChainBenchmark} walks a chain with 1M states and 8M
+ * transitions whose successors follow a Zipf distribution. A
+ * {@link CompiledMarkovChain} took 8.3M to 8.8M steps/s. With the segment file
+ * in the OS page cache, this chain took:
+ * <ul>
+ * <li>3 to 3.5M steps/s with 1% of the blocks cached (88% hits)</li>
+ * <li>6.4 to 7.2M with 10% cached (99% hits)</li>
+ * <li>7.1 to 7.4M with all blocks cached</li>
+ * </ul>
+ * With the hot blocks cached, walks therefore reach 75 to 85% of in-memory
+ * speed. The rest is the extra indirection through a block object per state.
+ * The cost of a miss depends on the storage, so a file that isn't in the page
+ * cache will be slower.
+ *
+ * @author Daniel Martin
+ *
+ * @param <T>
+ *            The type to use as the key for states.
+ */
+public class DiskMarkovChain<T> implements IndexedChain<T>, Closeable {
+
+    private static final int MAGIC = 0x4d43_5347;
+
+    /**
+     * Size of the trailer: index offset, state count and magic number.
+     */
+    private static final int TRAILER_SIZE = 16;
+
+    /**
+     * Size of one index entry: block offset and transition count.
+     */
+    private static final int INDEX_ENTRY_SIZE = 12;
+
+    /**
+     * Size of one transition in a block: target id and cumulative probability.
+     */
+    static final int TRANSITION_SIZE = 12;
+
+    /**
+     * Approximate heap overhead of a cached block besides its transitions.
+     */
+    static final int BLOCK_OVERHEAD = 96;
+
+    private final FileChannel channel;
+
+    private final List<T> keys;
+
+    private final Map<T, Integer> ids;
+
+    private final long[] offsets;
+
+    private final int[] counts;
+
+    /**
+     * Cached blocks by state id, or null for states that aren't cached, so a
+     * cache hit is a single array load.
+     */
+    private final Block[] cache;
+
+    /**
+     * Ids of the cached blocks in the order the CLOCK hand visits them.
+     */
+    private int[] clock;
+
+    private int clockSize;
+
+    private int clockHand;
+
+    private final long cacheCapacity;
+
+    private final Random random;
+
+    private long cacheSize;
+
+    private long cacheHits;
+
+    private long cacheMisses;
+
+    private int currentState;
+
+    /**
+     * Opens a chain that was previously written with a {@link Writer}. Uses
+     * {@code new Random()} as the RNG for choosing transitions to take.
+     *
+     * @param file
+     *            the segment file
+     * @param keys
+     *            the keys of the states, in the order they were added to the
+     *            writer
+     * @param cacheCapacity
+     *            the maximum number of bytes of transition blocks to cache
+     * @return the chain
+     * @throws IOException
+     *             if the file can't be read or isn't a valid segment file
+     * @throws IllegalArgumentException
+     *             if any argument is null, the keys contain duplicates or
+     *             cacheCapacity is negative
+     */
+    public static <T> DiskMarkovChain<T> open(Path file, List<T> keys, long cacheCapacity)
+            throws IOException {
+        return open(file, keys, cacheCapacity, new Random());
+    }
+
+    /**
+     * Opens a chain that was previously written with a {@link Writer}.
+     *
+     * @param file
+     *            the segment file
+     * @param keys
+     *            the keys of the states, in the order they were added to the
+     *            writer
+     * @param cacheCapacity
+     *            the maximum number of bytes of transition blocks to cache
+     * @param random
+     *            source of random numbers for calculating the next state
+     * @return the chain
+     * @throws IOException
+     *             if the file can't be read or isn't a valid segment file
+     * @throws IllegalArgumentException
+     *             if any argument is null, the keys contain duplicates or
+     *             cacheCapacity is negative
+     */
+    public static <T> DiskMarkovChain<T> open(Path file, List<T> keys, long cacheCapacity,
+            Random random) throws IOException {
+        if (file == null || keys == null) {
+            throw new IllegalArgumentException("file/keys must not be null");
+        }
+
+        if (cacheCapacity < 0) {
+            throw new IllegalArgumentException("cacheCapacity must not be negative");
+        }
+
+        if (random == null) {
+            throw new IllegalArgumentException("random must not be null");
+        }
+
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+
+        try {
+            return new DiskMarkovChain<>(channel, keys, cacheCapacity, random);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes the given chain to a segment file and opens it. The states keep
+     * their ids.
+     *
+     * @param chain
+     *            the chain to write
+     * @param file
+     *            the segment file to create
+     * @param cacheCapacity
+     *            the maximum number of bytes of transition blocks to cache
+     * @return the disk-backed chain
+     * @throws IOException
+     *             if the file can't be written
+     * @throws IllegalArgumentException
+     *             if any argument is null or cacheCapacity is negative
+     */
+    public static <T> DiskMarkovChain<T> create(ChainStructure<T> chain, Path file,
+            long cacheCapacity) throws IOException {
+        if (chain == null) {
+            throw new IllegalArgumentException("chain must not be null");
+        }
+
+        try (Writer<T> writer = new Writer<>(file)) {
+            int stateCount = chain.getStateCount();
+
+            for (int id = 0; id < stateCount; id++) {
+                writer.addState(chain.getKey(id));
+            }
+
+            for (int id = 0; id < stateCount; id++) {
+                writer.addTransitions(id, chain.getSuccessorIds(id),
+                        chain.getSuccessorProbabilities(id));
+            }
+
+            return writer.open(cacheCapacity);
+        }
+    }
+
+    private DiskMarkovChain(FileChannel channel, List<T> keys, long cacheCapacity,
+            Random random) throws IOException {
+        this.channel = channel;
+        this.keys = new ArrayList<>(keys);
+        this.ids = new HashMap<>();
+
+        for (int i = 0; i < this.keys.size(); i++) {
+            T key = this.keys.get(i);
+
+            if (key == null) {
+                throw new IllegalArgumentException("keys must not contain null");
+            }
+
+            if (this.ids.put(key, i) != null) {
+                throw new IllegalArgumentException("keys must not contain duplicates");
+            }
+        }
+
+        long size = channel.size();
+
+        if (size < TRAILER_SIZE) {
+            throw new IOException("Not a segment file");
+        }
+
+        ByteBuffer trailer = read(size - TRAILER_SIZE, TRAILER_SIZE);
+        long indexOffset = trailer.getLong();
+        int stateCount = trailer.getInt();
+
+        if (trailer.getInt() != MAGIC) {
+            throw new IOException("Not a segment file");
+        }
+
+        if (stateCount != this.keys.size()) {
+            throw new IllegalArgumentException(String.format(
+                    "Segment file has %d states but %d keys were given", stateCount,
+                    this.keys.size()));
+        }
+
+        this.offsets = new long[stateCount];
+        this.counts = new int[stateCount];
+
+        int batch = 1 << 16;
+
+        for (int start = 0; start < stateCount; start += batch) {
+            int n = Math.min(batch, stateCount - start);
+            ByteBuffer index = read(indexOffset + (long) start * INDEX_ENTRY_SIZE,
+                    n * INDEX_ENTRY_SIZE);
+
+            for (int i = start; i < start + n; i++) {
+                this.offsets[i] = index.getLong();
+                this.counts[i] = index.getInt();
+            }
+        }
+
+        this.cache = new Block[this.offsets.length];
+        this.clock = new int[16];
+        this.clockSize = 0;
+        this.clockHand = 0;
+        this.cacheCapacity = cacheCapacity;
+        this.random = random;
+        this.cacheSize = 0;
+        this.cacheHits = 0;
+        this.cacheMisses = 0;
+        this.currentState = -1;
+    }
+
+    /**
+     * Sets the current state. The state must be defined.
+     *
+     * @param key
+     *            the key for the state
+     * @throws StateNotDefinedException
+     *             if the given state isn't defined
+     */
+    public void setState(T key) {
+        Integer id = this.ids.get(key);
+
+        if (id == null) {
+            throw new StateNotDefinedException("Cannot set state because it hasn't been defined");
+        }
+
+        this.currentState = id;
+    }
+
+    /**
+     * Sets the current state by id.
+     *
+     * @param id
+     *            the id of the state
+     * @throws StateNotDefinedException
+     *             if no state has the given id
+     */
+    @Override
+    public void setStateById(int id) {
+        checkId(id);
+        this.currentState = id;
+    }
+
+    /**
+     * Gets the id of the current state.
+     *
+     * @return the id of the current state or -1 if no current state exists
+     */
+    @Override
+    public int getCurrentStateId() {
+        return this.currentState;
+    }
+
+    /**
+     * Gets the current state.
+     *
+     * @return the current state or {@code null} if no current state exists
+     */
+    public T getCurrentState() {
+        if (this.currentState >= 0) {
+            return this.keys.get(this.currentState);
+        }
+
+        return null;
+    }
+
+    /**
+     * Checks whether the state given with the given key has been defined.
+     *
+     * @param key
+     *            the key of the state
+     * @return true if the state has been defined, false otherwise
+     */
+    public boolean containsState(T key) {
+        return this.ids.containsKey(key);
+    }
+
+    /**
+     * Returns a set of all the defined states
+     *
+     * @return the states
+     */
+    public Set<T> getStates() {
+        return Collections.unmodifiableSet(this.ids.keySet());
+    }
+
+    /**
+     * Gets the number of defined states.
+     *
+     * @return the number of states
+     */
+    @Override
+    public int getStateCount() {
+        return this.keys.size();
+    }
+
+    /**
+     * Gets the id of the state with the given key.
+     *
+     * @param key
+     *            the key for the state
+     * @return the id
+     * @throws IllegalArgumentException
+     *             if key is null
+     * @throws StateNotDefinedException
+     *             if the state hasn't been defined
+     */
+    @Override
+    public int getStateId(T key) {
+        if (key == null) {
+            throw new IllegalArgumentException("key must not be null");
+        }
+
+        Integer id = this.ids.get(key);
+
+        if (id == null) {
+            throw new StateNotDefinedException("State hasn't been defined");
+        }
+
+        return id;
+    }
+
+    /**
+     * Gets the key of the state with the given id.
+     *
+     * @param id
+     *            the id of the state
+     * @return the key
+     * @throws StateNotDefinedException
+     *             if no state has the given id
+     */
+    @Override
+    public T getKey(int id) {
+        checkId(id);
+        return this.keys.get(id);
+    }
+
+    /**
+     * Gets the ids of all states the given state has a transition to, loading
+     * its transitions from disk if they aren't cached.
+     *
+     * @param id
+     *            the id of the state
+     * @return the successor ids
+     * @throws StateNotDefinedException
+     *             if no state has the given id
+     * @throws UncheckedIOException
+     *             if the transitions can't be read from disk
+     */
+    @Override
+    public int[] getSuccessorIds(int id) {
+        checkId(id);
+        return getBlock(id).targets.clone();
+    }
+
+    /**
+     * Gets the probabilities of all transitions of the given state, loading
+     * its transitions from disk if they aren't cached.
+     *
+     * @param id
+     *            the id of the state
+     * @return the probabilities
+     * @throws StateNotDefinedException
+     *             if no state has the given id
+     * @throws UncheckedIOException
+     *             if the transitions can't be read from disk
+     */
+    @Override
+    public double[] getSuccessorProbabilities(int id) {
+        checkId(id);
+        double[] cumulative = getBlock(id).cumulative;
+        double[] probabilities = new double[cumulative.length];
+        double previous = 0.0;
+
+        for (int i = 0; i < cumulative.length; i++) {
+            probabilities[i] = cumulative[i] - previous;
+            previous = cumulative[i];
+        }
+
+        return probabilities;
+    }
+
+    /**
+     * Gets all the transition states for the state with the given key
+     *
+     * @param key
+     *            the key for the state
+     * @return a set of states
+     * @throws IllegalArgumentException
+     *             if key is null
+     * @throws StateNotDefinedException
+     *             if the state isn't defined
+     * @throws UncheckedIOException
+     *             if the transitions can't be read from disk
+     */
+    public Set<T> getTransitionsForState(T key) {
+        if (key == null) {
+            throw new IllegalArgumentException("key must not be null");
+        }
+
+        Integer id = this.ids.get(key);
+
+        if (id == null) {
+            throw new StateNotDefinedException(
+                    "Cannot get transitions for state because it's not defined");
+        }
+
+        Set<T> transitionStates = new HashSet<>();
+
+        for (int target : getBlock(id).targets) {
+            transitionStates.add(this.keys.get(target));
+        }
+
+        return transitionStates;
+    }
+
+    /**
+     * Transitions from the current state to another state based on the
+     * probabilities of the defined transitions. The transitions of the current
+     * state are loaded from disk if they aren't cached. If the current state is
+     * {@code null}, then the new state will also be {@code null}.
+     *
+     * @throws UncheckedIOException
+     *             if the transitions can't be read from disk
+     */
+    @Override
+    public void transition() {
+        if (this.currentState < 0) {
+            return;
+        }
+
+        this.currentState = getBlock(this.currentState).sample(this.currentState,
+                this.random.nextDouble());
+    }
+
+    /**
+     * Gets the number of block lookups that were served from the cache.
+     *
+     * @return the number of cache hits
+     */
+    public long getCacheHits() {
+        return this.cacheHits;
+    }
+
+    /**
+     * Gets the number of block lookups that had to read from disk.
+     *
+     * @return the number of cache misses
+     */
+    public long getCacheMisses() {
+        return this.cacheMisses;
+    }
+
+    /**
+     * Gets the approximate number of bytes currently held by the cache.
+     *
+     * @return the cache size in bytes
+     */
+    public long getCacheSize() {
+        return this.cacheSize;
+    }
+
+    /**
+     * Closes the underlying segment file.
+     */
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+
+    private void checkId(int id) {
+        if (id < 0 || id >= this.keys.size()) {
+            throw new StateNotDefinedException("No state has id " + id);
+        }
+    }
+
+    private Block getBlock(int id) {
+        Block block = this.cache[id];
+
+        if (block != null) {
+            block.referenced = true;
+            this.cacheHits++;
+            return block;
+        }
+
+        this.cacheMisses++;
+
+        try {
+            block = readBlock(id);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        long blockSize = block.size();
+
+        if (blockSize <= this.cacheCapacity) {
+            while (this.cacheSize + blockSize > this.cacheCapacity) {
+                evictBlock();
+            }
+
+            if (this.clockSize == this.clock.length) {
+                this.clock = Arrays.copyOf(this.clock, this.clockSize * 2);
+            }
+
+            this.clock[this.clockSize++] = id;
+            this.cache[id] = block;
+            this.cacheSize += blockSize;
+        }
+
+        return block;
+    }
+
+    /**
+     * Evicts one block with the CLOCK algorithm: blocks that were used since
+     * the hand last passed them get a second chance, the first one that
+     * wasn't is evicted.
+     */
+    private void evictBlock() {
+        while (true) {
+            if (this.clockHand >= this.clockSize) {
+                this.clockHand = 0;
+            }
+
+            int id = this.clock[this.clockHand];
+            Block block = this.cache[id];
+
+            if (block.referenced) {
+                block.referenced = false;
+                this.clockHand++;
+            } else {
+                this.cache[id] = null;
+                this.cacheSize -= block.size();
+                this.clock[this.clockHand] = this.clock[--this.clockSize];
+                return;
+            }
+        }
+    }
+
+    private Block readBlock(int id) throws IOException {
+        int count = this.counts[id];
+        int[] targets = new int[count];
+        double[] cumulative = new double[count];
+
+        if (count > 0) {
+            ByteBuffer buffer = read(this.offsets[id], count * TRANSITION_SIZE);
+            buffer.asIntBuffer().get(targets);
+            buffer.position(count * 4);
+            buffer.asDoubleBuffer().get(cumulative);
+        }
+
+        return new Block(targets, cumulative);
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+
+        while (buffer.hasRemaining()) {
+            if (this.channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of segment file");
+            }
+        }
+
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * The transitions of one state as a sampling table of target ids and
+     * cumulative probabilities.
+     */
+    private static final class Block {
+
+        private final int[] targets;
+
+        private final double[] cumulative;
+
+        /**
+         * Whether the block was used since the CLOCK hand last passed it.
+         */
+        private boolean referenced;
+
+        private Block(int[] targets, double[] cumulative) {
+            this.targets = targets;
+            this.cumulative = cumulative;
+        }
+
+        private long size() {
+            return BLOCK_OVERHEAD + (long) this.targets.length * TRANSITION_SIZE;
+        }
+
+        /**
+         * Finds the first transition whose cumulative probability is greater
+         * than rand, staying on the given state if there is none.
+         */
+        private int sample(int self, double rand) {
+            int low = 0;
+            int high = this.cumulative.length;
+
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+
+                if (this.cumulative[mid] > rand) {
+                    high = mid;
+                } else {
+                    low = mid + 1;
+                }
+            }
+
+            return low < this.targets.length ? this.targets[low] : self;
+        }
+    }
+
+    /**
+     * Writes a segment file for a {@link DiskMarkovChain}. All states must be
+     * added before their transitions, and the transitions of each state are
+     * added at once. Transitions are streamed to disk, so the whole chain never
+     * has to fit in memory.
+     *
+     * @param <T>
+     *            The type to use as the key for states.
+     */
+    public static final class Writer<T> implements Closeable {
+
+        private final Path file;
+
+        private final DataOutputStream out;
+
+        private final List<T> keys;
+
+        private final Map<T, Integer> ids;
+
+        private long[] offsets;
+
+        private int[] counts;
+
+        private boolean[] written;
+
+        private long position;
+
+        private boolean finished;
+
+        /**
+         * Constructs a {@code Writer} that creates or truncates the given file.
+         *
+         * @param file
+         *            the segment file
+         * @throws IOException
+         *             if the file can't be created
+         * @throws IllegalArgumentException
+         *             if file is null
+         */
+        public Writer(Path file) throws IOException {
+            if (file == null) {
+                throw new IllegalArgumentException("file must not be null");
+            }
+
+            this.file = file;
+            this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file),
+                    1 << 16));
+            this.keys = new ArrayList<>();
+            this.ids = new HashMap<>();
+            this.offsets = new long[16];
+            this.counts = new int[16];
+            this.written = new boolean[16];
+            this.position = 0;
+            this.finished = false;
+        }
+
+        /**
+         * Adds a state with the given key. States get ids in the order they
+         * are added.
+         *
+         * @param key
+         *            the key of the new state
+         * @return the id of the new state
+         * @throws StateAlreadyDefinedException
+         *             if the state has already been added
+         * @throws IllegalArgumentException
+         *             if the key is null
+         */
+        public int addState(T key) {
+            if (key == null) {
+                throw new IllegalArgumentException("key must not be null");
+            }
+
+            checkNotFinished();
+
+            if (this.ids.containsKey(key)) {
+                throw new StateAlreadyDefinedException("State already defined");
+            }
+
+            int id = this.keys.size();
+
+            if (id == this.offsets.length) {
+                this.offsets = Arrays.copyOf(this.offsets, id * 2);
+                this.counts = Arrays.copyOf(this.counts, id * 2);
+                this.written = Arrays.copyOf(this.written, id * 2);
+            }
+
+            this.keys.add(key);
+            this.ids.put(key, id);
+            return id;
+        }
+
+        /**
+         * Writes all transitions of the given state. Probabilities must be
+         * between 0 and 1 inclusive and sum to at most 1; the rest of the
+         * probability space is a transition back onto the same state.
+         *
+         * @param from
+         *            the from-state for the transitions
+         * @param transitions
+         *            map of to-states to probabilities
+         * @throws StateNotDefinedException
+         *             if any of the given states haven't been added
+         * @throws TransitionAlreadyDefinedException
+         *             if transitions have already been written for the state
+         * @throws IllegalArgumentException
+         *             if any argument is null or a probability isn't in the
+         *             correct range
+         * @throws IOException
+         *             if the transitions can't be written
+         */
+        public void addTransitions(T from, Map<T, Double> transitions) throws IOException {
+            if (from == null || transitions == null) {
+                throw new IllegalArgumentException("from/transitions must not be null");
+            }
+
+            Integer id = this.ids.get(from);
+
+            if (id == null) {
+                throw new StateNotDefinedException(
+                        "From state must be defined already to write transitions");
+            }
+
+            int[] targets = new int[transitions.size()];
+            double[] probabilities = new double[transitions.size()];
+            int i = 0;
+
+            for (Entry<T, Double> e : transitions.entrySet()) {
+                Integer target = e.getKey() != null ? this.ids.get(e.getKey()) : null;
+
+                if (target == null) {
+                    throw new StateNotDefinedException(
+                            "To states must be defined already to write transitions");
+                }
+
+                targets[i] = target;
+                probabilities[i] = e.getValue();
+                i++;
+            }
+
+            addTransitions(id, targets, probabilities);
+        }
+
+        /**
+         * Writes all transitions of the given state by id. Probabilities must
+         * be between 0 and 1 inclusive and sum to at most 1; the rest of the
+         * probability space is a transition back onto the same state.
+         *
+         * @param from
+         *            the id of the from-state for the transitions
+         * @param targets
+         *            the ids of the to-states
+         * @param probabilities
+         *            the probabilities, in the same order as the targets
+         * @throws StateNotDefinedException
+         *             if no added state has one of the given ids
+         * @throws TransitionAlreadyDefinedException
+         *             if transitions have already been written for the state
+         * @throws IllegalArgumentException
+         *             if any argument is null, the arrays differ in length or a
+         *             probability isn't in the correct range
+         * @throws IOException
+         *             if the transitions can't be written
+         */
+        public void addTransitions(int from, int[] targets, double[] probabilities)
+                throws IOException {
+            if (targets == null || probabilities == null) {
+                throw new IllegalArgumentException("targets/probabilities must not be null");
+            }
+
+            if (targets.length != probabilities.length) {
+                throw new IllegalArgumentException(
+                        "targets and probabilities must have the same length");
+            }
+
+            checkNotFinished();
+            checkId(from);
+
+            if (this.written[from]) {
+                throw new TransitionAlreadyDefinedException(String.format(
+                        "Transitions already written for %s", this.keys.get(from).toString()));
+            }
+
+            int count = targets.length;
+            double[] cumulative = new double[count];
+            double sumOfProbabilities = 0.0;
+
+            for (int i = 0; i < count; i++) {
+                checkId(targets[i]);
+
+                if (probabilities[i] < 0.0 || probabilities[i] > 1.0) {
+                    throw new IllegalArgumentException(
+                            "probability must be between 0 and 1 inclusive");
+                }
+
+                sumOfProbabilities += probabilities[i];
+                cumulative[i] = sumOfProbabilities;
+            }
+
+            if (sumOfProbabilities > 1.01) {
+                throw new IllegalArgumentException(
+                        "The sum of probabilities for a state must not exceed 1.0");
+            }
+
+            for (int target : targets) {
+                this.out.writeInt(target);
+            }
+
+            for (double c : cumulative) {
+                this.out.writeDouble(c);
+            }
+
+            this.offsets[from] = this.position;
+            this.counts[from] = count;
+            this.written[from] = true;
+            this.position += (long) count * TRANSITION_SIZE;
+        }
+
+        /**
+         * Finishes the segment file and opens it as a chain. Uses
+         * {@code new Random()} as the RNG for choosing transitions to take.
+         *
+         * @param cacheCapacity
+         *            the maximum number of bytes of transition blocks to cache
+         * @return the chain
+         * @throws IOException
+         *             if the file can't be written or read
+         */
+        public DiskMarkovChain<T> open(long cacheCapacity) throws IOException {
+            return open(cacheCapacity, new Random());
+        }
+
+        /**
+         * Finishes the segment file and opens it as a chain.
+         *
+         * @param cacheCapacity
+         *            the maximum number of bytes of transition blocks to cache
+         * @param random
+         *            source of random numbers for calculating the next state
+         * @return the chain
+         * @throws IOException
+         *             if the file can't be written or read
+         */
+        public DiskMarkovChain<T> open(long cacheCapacity, Random random) throws IOException {
+            close();
+            return DiskMarkovChain.open(this.file, this.keys, cacheCapacity, random);
+        }
+
+        /**
+         * Gets the keys of the added states in id order, as needed to reopen
+         * the segment file with {@link DiskMarkovChain#open(Path, List, long)}.
+         *
+         * @return the keys
+         */
+        public List<T> getKeys() {
+            return Collections.unmodifiableList(this.keys);
+        }
+
+        /**
+         * Writes the index and closes the segment file. Does nothing if it's
+         * already closed.
+         */
+        @Override
+        public void close() throws IOException {
+            if (this.finished) {
+                return;
+            }
+
+            this.finished = true;
+
+            try {
+                long indexOffset = this.position;
+
+                for (int i = 0; i < this.keys.size(); i++) {
+                    this.out.writeLong(this.offsets[i]);
+                    this.out.writeInt(this.counts[i]);
+                }
+
+                this.out.writeLong(indexOffset);
+                this.out.writeInt(this.keys.size());
+                this.out.writeInt(MAGIC);
+            } finally {
+                this.out.close();
+            }
+        }
+
+        private void checkId(int id) {
+            if (id < 0 || id >= this.keys.size()) {
+                throw new StateNotDefinedException("No state has id " + id);
+            }
+        }
+
+        private void checkNotFinished() {
+            if (this.finished) {
+                throw new IllegalStateException("Writer has already been closed");
+            }
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package net.asgot.markovchain;
+
+/**
+ * A Markov chain whose states can be addressed by dense int ids in addition to
+ * their keys, and that can be walked from a current state by id. A key is
+ * resolved to an id once with {@link #getStateId(Object)}, and from then on
+ * every operation works on ints without hashing the key.
+ *
+ * @author Daniel Martin
+ *
+ * @param <T>
+ *            The type to use as the key for states.
+ */
+public interface IndexedChain<T> extends ChainStructure<T> {
+
+    /**
+     * Sets the current state by id.
+     *
+     * @param id
+     *            the id of the state
+     * @throws StateNotDefinedException
+     *             if no state has the given id
+     */
+    void setStateById(int id);
+
+    /**
+     * Gets the id of the current state.
+     *
+     * @return the id of the current state or -1 if no current state exists
+     */
+    int getCurrentStateId();
+
+    /**
+     * Transitions from the current state to another state based on the
+     * probabilities of the defined transitions. If there is no current state,
+     * there still won't be one afterwards.
+     */
+    void transition();
+}
@@ -1,24 +1,31 @@
 package net.asgot.markovchain;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 
 /**
- * A Markov chain implementation.
+ * A Markov chain implementation. States are numbered with dense ids in the
+ * order they are added, so besides their keys they can be addressed through
+ * the {@link IndexedChain} methods.
  * 
  * @author Daniel Martin
  *
  * @param <T>
  *            The type to use as the key for states.
  */
-public class MarkovChain<T> {
+public class MarkovChain<T> implements IndexedChain<T> {
 
     private Map<T, State<T>> states;
 
+    private List<State<T>> stateList;
+
     private State<T> currentState;
 
     /**
@@ -26,6 +33,7 @@ public class MarkovChain<T> {
      */
     public MarkovChain() {
         this.states = new HashMap<>();
+        this.stateList = new ArrayList<>();
         this.currentState = null;
     }
 
@@ -38,11 +46,26 @@ public class MarkovChain<T> {
      *             if the given state has not been defined
      */
     public void setState(T key) {
-        if (states.containsKey(key)) {
-            this.currentState = states.get(key);
-        } else {
+        State<T> state = this.states.get(key);
+
+        if (state == null) {
             throw new StateNotDefinedException("Cannot set state because it hasn't been defined");
         }
+
+        this.currentState = state;
+    }
+
+    /**
+     * Sets the current state by id.
+     * 
+     * @param id
+     *            the id of the state
+     * @throws StateNotDefinedException
+     *             if no state has the given id
+     */
+    @Override
+    public void setStateById(int id) {
+        this.currentState = getState(id);
     }
 
     /**
@@ -60,11 +83,65 @@ public class MarkovChain<T> {
             throw new IllegalArgumentException("key must not be null");
         }
 
-        if (this.states.containsKey(key)) {
+        State<T> state = new State<>(key);
+
+        if (this.states.putIfAbsent(key, state) != null) {
             throw new StateAlreadyDefinedException("State already defined");
         }
 
-        this.states.put(key, new State<>(key));
+        state.setId(this.stateList.size());
+        this.stateList.add(state);
+    }
+
+    /**
+     * Gets the id of the state with the given key. Ids are assigned in the
+     * order states are added, starting at 0.
+     * 
+     * @param key
+     *            the key for the state
+     * @return the id
+     * @throws IllegalArgumentException
+     *             if key is null
+     * @throws StateNotDefinedException
+     *             if the state hasn't been defined
+     */
+    @Override
+    public int getStateId(T key) {
+        if (key == null) {
+            throw new IllegalArgumentException("key must not be null");
+        }
+
+        State<T> state = this.states.get(key);
+
+        if (state == null) {
+            throw new StateNotDefinedException("State hasn't been defined");
+        }
+
+        return state.getId();
+    }
+
+    /**
+     * Gets the key of the state with the given id.
+     * 
+     * @param id
+     *            the id of the state
+     * @return the key
+     * @throws StateNotDefinedException
+     *             if no state has the given id
+     */
+    @Override
+    public T getKey(int id) {
+        return getState(id).getKey();
+    }
+
+    /**
+     * Gets the number of defined states.
+     * 
+     * @return the number of states
+     */
+    @Override
+    public int getStateCount() {
+        return this.stateList.size();
     }
 
     /**
@@ -91,6 +168,20 @@ public class MarkovChain<T> {
         return null;
     }
 
+    /**
+     * Gets the id of the current state.
+     * 
+     * @return the id of the current state or -1 if no current state exists
+     */
+    @Override
+    public int getCurrentStateId() {
+        if (this.currentState != null) {
+            return this.currentState.getId();
+        }
+
+        return -1;
+    }
+
     /**
      * Returns a set of all the defined states
      * 
@@ -122,7 +213,10 @@ public class MarkovChain<T> {
             throw new IllegalArgumentException("from/to cannot be null");
         }
 
-        if (!this.states.containsKey(from) || !this.states.containsKey(to)) {
+        State<T> fromState = this.states.get(from);
+        State<T> toState = this.states.get(to);
+
+        if (fromState == null || toState == null) {
             throw new StateNotDefinedException(
                     "From and to states must be defined already to create a transition");
         }
@@ -131,8 +225,31 @@ public class MarkovChain<T> {
             throw new IllegalArgumentException("probability must be between 0 and 1 inclusive");
         }
 
-        State<T> fromState = this.states.get(from);
-        State<T> toState = this.states.get(to);
+        fromState.addTransition(toState, probability);
+    }
+
+    /**
+     * Adds a transition from one state to another by id with the given
+     * probability. The probability must be between 0 and 1 inclusive.
+     * 
+     * @param from
+     *            the id of the from-state for the transition
+     * @param to
+     *            the id of the to-state for the transition
+     * @param probability
+     *            the probability that the transition will be taken
+     * @throws StateNotDefinedException
+     *             if no state has one of the given ids
+     * @throws IllegalArgumentException
+     *             if the probability isn't in the correct range
+     */
+    public void addTransitionById(int from, int to, double probability) {
+        State<T> fromState = getState(from);
+        State<T> toState = getState(to);
+
+        if (probability < 0.0 || probability > 1.0) {
+            throw new IllegalArgumentException("probability must be between 0 and 1 inclusive");
+        }
 
         fromState.addTransition(toState, probability);
     }
@@ -149,26 +266,92 @@ public class MarkovChain<T> {
             throw new IllegalArgumentException("key must not be null");
         }
 
-        if (!this.states.containsKey(key)) {
+        State<T> state = this.states.get(key);
+
+        if (state == null) {
             throw new StateNotDefinedException(
                     "Cannot get transitions for state because it's not defined");
         }
 
         Set<T> transitionStates = new HashSet<>();
 
-        for (State<T> s : states.get(key).getTransitions()) {
+        for (State<T> s : state.getTransitions()) {
             transitionStates.add(s.getKey());
         }
 
         return transitionStates;
     }
 
+    /**
+     * Gets all the transition states for the state with the given key along
+     * with the probability of each transition
+     * 
+     * @param key
+     *            the key for the state
+     * @return a map of states to probabilities
+     * @throws IllegalArgumentException
+     *             if key is null
+     * @throws StateNotDefinedException
+     *             if the state isn't defined
+     */
+    public Map<T, Double> getTransitionProbabilitiesForState(T key) {
+        if (key == null) {
+            throw new IllegalArgumentException("key must not be null");
+        }
+
+        State<T> state = this.states.get(key);
+
+        if (state == null) {
+            throw new StateNotDefinedException(
+                    "Cannot get transitions for state because it's not defined");
+        }
+
+        Map<T, Double> probabilities = new LinkedHashMap<>();
+
+        for (Entry<State<T>, Double> e : state.getTransitionProbabilities().entrySet()) {
+            probabilities.put(e.getKey().getKey(), e.getValue());
+        }
+
+        return probabilities;
+    }
+
+    /**
+     * Gets the ids of all states the given state has a transition to.
+     * 
+     * @param id
+     *            the id of the state
+     * @return the successor ids, in the same order as
+     *         {@link #getSuccessorProbabilities(int)}
+     * @throws StateNotDefinedException
+     *             if no state has the given id
+     */
+    @Override
+    public int[] getSuccessorIds(int id) {
+        return getState(id).getTransitionIds();
+    }
+
+    /**
+     * Gets the probabilities of all transitions of the given state.
+     * 
+     * @param id
+     *            the id of the state
+     * @return the probabilities, in the same order as
+     *         {@link #getSuccessorIds(int)}
+     * @throws StateNotDefinedException
+     *             if no state has the given id
+     */
+    @Override
+    public double[] getSuccessorProbabilities(int id) {
+        return getState(id).getTransitionProbabilityArray();
+    }
+
     /**
      * Transitions from the current state to another state based on the
      * probabilities of the defined transitions. If the current state (as given
      * by {@link MarkovChain#getCurrentState()}) is {@code null}, then the new
      * state will also be {@code null}.
      */
+    @Override
     public void transition() {
         if (this.currentState == null) {
             return;
@@ -177,6 +360,14 @@ public class MarkovChain<T> {
         this.currentState = this.currentState.getNextState();
     }
 
+    private State<T> getState(int id) {
+        if (id < 0 || id >= this.stateList.size()) {
+            throw new StateNotDefinedException("No state has id " + id);
+        }
+
+        return this.stateList.get(id);
+    }
+
     /**
      * Creates a {@code MarkovChain} from strings. Each string will have a
      * transition to every string that ever occurs after it, and the
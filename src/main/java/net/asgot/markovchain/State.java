@@ -1,12 +1,20 @@
 package net.asgot.markovchain;
 
+import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Map.Entry;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Random;
-import java.util.TreeMap;
 
 /**
  * Represents a state in a {@link MarkovChain}
+ * <p>
+ * Transitions are kept in parallel arrays of to-states and cumulative
+ * probabilities, and the way the next state is looked up depends on how many
+ * there are: a linear scan for a few transitions, a binary search for more,
+ * and an alias table (built on first use) for hub states with many
+ * transitions.
  * 
  * @author Daniel Martin
  *
@@ -15,14 +23,43 @@ import java.util.TreeMap;
  */
 public class State<T> {
 
+    /**
+     * Up to this many transitions, lookups scan the arrays linearly.
+     */
+    static final int LINEAR_SCAN_LIMIT = 8;
+
+    /**
+     * From this many transitions on, the next state is sampled from an alias
+     * table.
+     */
+    static final int ALIAS_TABLE_THRESHOLD = 128;
+
     private T key;
 
     private Random random;
 
-    private TreeMap<Double, State<T>> transitions;
+    private State<T>[] transitions;
+
+    private double[] cumulativeProbabilities;
+
+    private int transitionCount;
+
+    /**
+     * Open-addressing hash table of the to-states, only kept while transitions
+     * are being added and there are too many to scan for duplicates. It is
+     * dropped when the alias table is built and rebuilt on the next
+     * {@link #addTransition(State, double)}.
+     */
+    private State<T>[] transitionIndex;
+
+    private double[] aliasProbabilities;
+
+    private int[] aliases;
 
     private double sumOfProbabilities = 0.0;
 
+    private int id = -1;
+
     /**
      * Constructs a {@code State}. Uses {@code new Random()} as the RNG for
      * choosing transitions to take.
@@ -46,6 +83,7 @@ public class State<T> {
      * @throws IllegalArgumentException
      *             if key or random is null
      */
+    @SuppressWarnings("unchecked")
     public State(T key, Random random) {
         if (key == null) {
             throw new IllegalArgumentException("key must not be null");
@@ -57,7 +95,9 @@ public class State<T> {
 
         this.key = key;
         this.random = random;
-        this.transitions = new TreeMap<>();
+        this.transitions = (State<T>[]) new State<?>[1];
+        this.cumulativeProbabilities = new double[1];
+        this.transitionCount = 0;
     }
 
     /**
@@ -78,7 +118,7 @@ public class State<T> {
             throw new IllegalArgumentException("probability must be between 0 and 1 inclusive");
         }
 
-        if (transitions.containsValue(otherState)) {
+        if (hasTransitionTo(otherState)) {
             throw new TransitionAlreadyDefinedException(String.format(
                     "Transition already defined from %s to %s", this.key.toString(),
                     otherState.toString()));
@@ -89,17 +129,105 @@ public class State<T> {
                     "The sum of probabilities after adding this new transition must not exceed 1.0");
         }
 
-        this.transitions.put(probability + sumOfProbabilities, otherState);
+        if (this.transitionCount == this.transitions.length) {
+            int capacity = this.transitionCount * 2;
+            this.transitions = Arrays.copyOf(this.transitions, capacity);
+            this.cumulativeProbabilities = Arrays.copyOf(this.cumulativeProbabilities, capacity);
+        }
+
         this.sumOfProbabilities += probability;
+        this.transitions[this.transitionCount] = otherState;
+        this.cumulativeProbabilities[this.transitionCount] = this.sumOfProbabilities;
+        this.transitionCount++;
+
+        if (this.transitionCount > LINEAR_SCAN_LIMIT) {
+            if (this.transitionIndex == null
+                    || this.transitionCount * 2 > this.transitionIndex.length) {
+                rebuildTransitionIndex();
+            } else {
+                insertIntoIndex(otherState);
+            }
+        }
+
+        this.aliasProbabilities = null;
+        this.aliases = null;
     }
 
     /**
-     * Gets all the states this state has a transition to
+     * Gets all the states this state has a transition to, in the order they
+     * were added. The collection is an unmodifiable live view, so transitions
+     * added later show up in it.
      * 
      * @return collection of transition states
      */
     public Collection<State<T>> getTransitions() {
-        return this.transitions.values();
+        return new AbstractList<State<T>>() {
+
+            @Override
+            public State<T> get(int index) {
+                if (index < 0 || index >= State.this.transitionCount) {
+                    throw new IndexOutOfBoundsException("Index: " + index);
+                }
+
+                return State.this.transitions[index];
+            }
+
+            @Override
+            public int size() {
+                return State.this.transitionCount;
+            }
+        };
+    }
+
+    /**
+     * Gets all the states this state has a transition to along with the
+     * probability of each transition, in the order they were added.
+     * 
+     * @return map of transition states to probabilities
+     */
+    public Map<State<T>, Double> getTransitionProbabilities() {
+        Map<State<T>, Double> probabilities = new LinkedHashMap<>();
+        double[] array = getTransitionProbabilityArray();
+
+        for (int i = 0; i < this.transitionCount; i++) {
+            probabilities.put(this.transitions[i], array[i]);
+        }
+
+        return probabilities;
+    }
+
+    /**
+     * Gets the ids of all the states this state has a transition to, in the
+     * order they were added.
+     * 
+     * @return the ids of the transition states
+     */
+    int[] getTransitionIds() {
+        int[] ids = new int[this.transitionCount];
+
+        for (int i = 0; i < this.transitionCount; i++) {
+            ids[i] = this.transitions[i].id;
+        }
+
+        return ids;
+    }
+
+    /**
+     * Gets the probabilities of all transitions, in the same order as
+     * {@link #getTransitionIds()}.
+     * 
+     * @return the probabilities
+     */
+    double[] getTransitionProbabilityArray() {
+        double[] probabilities = new double[this.transitionCount];
+        double previous = 0.0;
+
+        for (int i = 0; i < this.transitionCount; i++) {
+            probabilities[i] = this.cumulativeProbabilities[i] - previous;
+            previous = this.cumulativeProbabilities[i];
+        }
+
+        return probabilities;
     }
 
     /**
@@ -113,9 +241,23 @@ public class State<T> {
     public State<T> getNextState() {
         double rand = this.random.nextDouble();
 
-        Entry<Double, State<T>> e = this.transitions.higherEntry(rand);
+        if (this.transitionCount >= ALIAS_TABLE_THRESHOLD) {
+            return sampleAliasTable(rand);
+        }
+
+        int index;
+
+        if (this.transitionCount <= LINEAR_SCAN_LIMIT) {
+            index = 0;
+
+            while (index < this.transitionCount && this.cumulativeProbabilities[index] <= rand) {
+                index++;
+            }
+        } else {
+            index = higherIndex(rand);
+        }
 
-        return e != null ? e.getValue() : this;
+        return index < this.transitionCount ? this.transitions[index] : this;
     }
 
     /**
@@ -127,8 +269,186 @@ public class State<T> {
         return this.key;
     }
 
+    /**
+     * Gets the id this state has in its {@link MarkovChain}.
+     * 
+     * @return the id, or -1 if the state doesn't belong to a chain
+     */
+    int getId() {
+        return this.id;
+    }
+
+    void setId(int id) {
+        this.id = id;
+    }
+
     @Override
     public String toString() {
         return this.key.toString();
     }
+
+    private boolean hasTransitionTo(State<T> otherState) {
+        if (this.transitionIndex == null && this.transitionCount > LINEAR_SCAN_LIMIT) {
+            rebuildTransitionIndex();
+        }
+
+        if (this.transitionIndex != null) {
+            int mask = this.transitionIndex.length - 1;
+
+            int slot = slotFor(otherState, mask);
+
+            while (this.transitionIndex[slot] != null) {
+                if (this.transitionIndex[slot].equals(otherState)) {
+                    return true;
+                }
+
+                slot = (slot + 1) & mask;
+            }
+
+            return false;
+        }
+
+        for (int i = 0; i < this.transitionCount; i++) {
+            if (this.transitions[i].equals(otherState)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Rebuilds the index with room for twice as many transitions as there are
+     * now, keeping its load factor at most one half.
+     */
+    @SuppressWarnings("unchecked")
+    private void rebuildTransitionIndex() {
+        int capacity = Integer.highestOneBit(this.transitionCount) * 4;
+        this.transitionIndex = (State<T>[]) new State<?>[capacity];
+
+        for (int i = 0; i < this.transitionCount; i++) {
+            insertIntoIndex(this.transitions[i]);
+        }
+    }
+
+    private void insertIntoIndex(State<T> otherState) {
+        int mask = this.transitionIndex.length - 1;
+        int slot = slotFor(otherState, mask);
+
+        while (this.transitionIndex[slot] != null) {
+            slot = (slot + 1) & mask;
+        }
+
+        this.transitionIndex[slot] = otherState;
+    }
+
+    private static int slotFor(State<?> state, int mask) {
+        int hash = state.hashCode();
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    /**
+     * Finds the first transition whose cumulative probability is greater than
+     * rand, or {@code transitionCount} if there is none.
+     */
+    private int higherIndex(double rand) {
+        int low = 0;
+        int high = this.transitionCount;
+
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+
+            if (this.cumulativeProbabilities[mid] > rand) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+
+        return low;
+    }
+
+    /**
+     * Samples using Vose's alias method, building the table if needed. The
+     * extra column {@code transitionCount} stands for staying on this state.
+     */
+    private State<T> sampleAliasTable(double rand) {
+        if (this.aliases == null) {
+            buildAliasTable();
+        }
+
+        int columns = this.aliases.length;
+        double scaled = rand * columns;
+        int column = Math.min((int) scaled, columns - 1);
+        int index = scaled - column < this.aliasProbabilities[column] ? column
+                : this.aliases[column];
+
+        return index < this.transitionCount ? this.transitions[index] : this;
+    }
+
+    private void buildAliasTable() {
+        // Probabilities past a cumulative sum of 1 can never be drawn by the
+        // cumulative lookup, so they are cut off here as well
+        int columns = this.transitionCount + 1;
+        double[] scaled = new double[columns];
+        double previous = 0.0;
+
+        for (int i = 0; i < this.transitionCount; i++) {
+            double current = Math.min(this.cumulativeProbabilities[i], 1.0);
+            scaled[i] = (current - previous) * columns;
+            previous = current;
+        }
+
+        scaled[this.transitionCount] = (1.0 - previous) * columns;
+
+        double[] probabilities = new double[columns];
+        int[] aliasColumns = new int[columns];
+        int[] small = new int[columns];
+        int[] large = new int[columns];
+        int smallCount = 0;
+        int largeCount = 0;
+
+        for (int i = 0; i < columns; i++) {
+            if (scaled[i] < 1.0) {
+                small[smallCount++] = i;
+            } else {
+                large[largeCount++] = i;
+            }
+        }
+
+        while (smallCount > 0 && largeCount > 0) {
+            int less = small[--smallCount];
+            int more = large[--largeCount];
+
+            probabilities[less] = scaled[less];
+            aliasColumns[less] = more;
+            scaled[more] = scaled[more] + scaled[less] - 1.0;
+
+            if (scaled[more] < 1.0) {
+                small[smallCount++] = more;
+            } else {
+                large[largeCount++] = more;
+            }
+        }
+
+        // Whatever is left over is 1 up to rounding errors
+        while (largeCount > 0) {
+            int column = large[--largeCount];
+            probabilities[column] = 1.0;
+            aliasColumns[column] = column;
+        }
+
+        while (smallCount > 0) {
+            int column = small[--smallCount];
+            probabilities[column] = 1.0;
+            aliasColumns[column] = column;
+        }
+
+        this.aliasProbabilities = probabilities;
+        this.aliases = aliasColumns;
+
+        // Hub states are mostly sampled from once built, so the index is only
+        // rebuilt if more transitions are added
+        this.transitionIndex = null;
+    }
 }
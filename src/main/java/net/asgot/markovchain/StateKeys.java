@@ -0,0 +1,156 @@
+package net.asgot.markovchain;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps the keys of a read-only chain's states to their ids and back.
+ *
+ * @author Daniel Martin
+ *
+ * @param <T>
+ *            The type to use as the key for states.
+ */
+interface StateKeys<T> {
+
+    /**
+     * Gets the number of keys.
+     *
+     * @return the number of keys
+     */
+    int size();
+
+    /**
+     * Gets the id of the given key.
+     *
+     * @param key
+     *            the key
+     * @return the id or -1 if there is no such key
+     */
+    int idOf(T key);
+
+    /**
+     * Gets the key with the given id. The id must be valid.
+     *
+     * @param id
+     *            the id
+     * @return the key
+     */
+    T keyOf(int id);
+
+    /**
+     * {@link StateKeys} backed by a list of keys and a hash map of ids.
+     *
+     * @param <T>
+     *            The type to use as the key for states.
+     */
+    final class ListStateKeys<T> implements StateKeys<T> {
+
+        private final List<T> keys;
+
+        private final Map<T, Integer> ids;
+
+        ListStateKeys(List<T> keys) {
+            this.keys = new ArrayList<>(keys);
+            this.ids = new HashMap<>();
+
+            for (int i = 0; i < this.keys.size(); i++) {
+                this.ids.put(this.keys.get(i), i);
+            }
+        }
+
+        @Override
+        public int size() {
+            return this.keys.size();
+        }
+
+        @Override
+        public int idOf(T key) {
+            Integer id = this.ids.get(key);
+            return id != null ? id : -1;
+        }
+
+        @Override
+        public T keyOf(int id) {
+            return this.keys.get(id);
+        }
+    }
+
+    /**
+     * {@link StateKeys} that renumber the ids of other {@link StateKeys}
+     * without decoding or copying any keys.
+     *
+     * @param <T>
+     *            The type to use as the key for states.
+     */
+    final class PermutedStateKeys<T> implements StateKeys<T> {
+
+        private final StateKeys<T> base;
+
+        private final int[] newToOld;
+
+        private final int[] oldToNew;
+
+        private PermutedStateKeys(StateKeys<T> base, int[] newToOld, int[] oldToNew) {
+            this.base = base;
+            this.newToOld = newToOld;
+            this.oldToNew = oldToNew;
+        }
+
+        /**
+         * Creates keys where id {@code i} is the key with id
+         * {@code newToOld[i]} in the given keys. Permuting permuted keys
+         * combines both permutations over the same base, so views don't nest.
+         *
+         * @param keys
+         *            the keys to renumber
+         * @param newToOld
+         *            the old id of each new id
+         * @param oldToNew
+         *            the new id of each old id
+         * @return the renumbered keys
+         */
+        static <T> PermutedStateKeys<T> of(StateKeys<T> keys, int[] newToOld, int[] oldToNew) {
+            if (!(keys instanceof PermutedStateKeys)) {
+                return new PermutedStateKeys<>(keys, newToOld, oldToNew);
+            }
+
+            PermutedStateKeys<T> permuted = (PermutedStateKeys<T>) keys;
+            int size = newToOld.length;
+            int[] newToBase = new int[size];
+            int[] baseToNew = new int[size];
+
+            for (int id = 0; id < size; id++) {
+                newToBase[id] = permuted.newToOld[newToOld[id]];
+                baseToNew[newToBase[id]] = id;
+            }
+
+            return new PermutedStateKeys<>(permuted.base, newToBase, baseToNew);
+        }
+
+        /**
+         * Gets the keys whose ids are renumbered.
+         */
+        StateKeys<T> getBase() {
+            return this.base;
+        }
+
+        @Override
+        public int size() {
+            return this.newToOld.length;
+        }
+
+        @Override
+        public int idOf(T key) {
+            int id = this.base.idOf(key);
+            return id >= 0 ? this.oldToNew[id] : -1;
+        }
+
+        @Override
+        public T keyOf(int id) {
+            return this.base.keyOf(this.newToOld[id]);
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package net.asgot.markovchain;
+
+/**
+ * Orders in which {@link CompiledMarkovChain#reorder(StateOrdering)} can
+ * renumber states to improve memory locality during walks.
+ *
+ * @author Daniel Martin
+ *
+ */
+public enum StateOrdering {
+
+    /**
+     * Breadth-first order as in the Cuthill-McKee algorithm: each search starts
+     * at the unvisited state with the fewest transitions and visits successors
+     * in order of increasing number of transitions. States that follow each
+     * other in a walk end up with nearby ids.
+     */
+    CUTHILL_MCKEE,
+
+    /**
+     * Order of decreasing stationary visit frequency, estimated by power
+     * iteration. The most visited states and their transitions are packed
+     * together at the start of the arrays.
+     */
+    VISIT_FREQUENCY
+}
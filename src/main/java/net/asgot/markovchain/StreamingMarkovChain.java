@@ -0,0 +1,561 @@
+package net.asgot.markovchain;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * A Markov chain that is learned from an unbounded stream of events. Every
+ * observed pair of consecutive events adds weight to a transition, and all
+ * weights decay exponentially with the given half-life so that the chain
+ * follows recent behaviour. The number of states is bounded: when a new state
+ * would exceed the bound, the least recently used state is evicted. The
+ * number of transitions kept per state is bounded as well, with the lightest
+ * transitions being dropped first.
+ * <p>
+ * Decay is applied lazily, only when a state is touched, so observing an event
+ * is amortized constant time.
+ *
+ * @author Daniel Martin
+ *
+ * @param <T>
+ *            The type to use as the key for states.
+ */
+public class StreamingMarkovChain<T> {
+
+    /**
+     * Default maximum number of transitions kept for a single state.
+     */
+    public static final int DEFAULT_MAX_TRANSITIONS_PER_STATE = 1024;
+
+    /**
+     * Transitions whose decayed weight drops below this value are dropped
+     * whenever a state's weights are rescaled.
+     */
+    private static final double MIN_WEIGHT = 1e-6;
+
+    /**
+     * When a state's scale factor drops below this value, it is folded back
+     * into the raw weights to keep them within the range of a double.
+     */
+    private static final double RESCALE_THRESHOLD = 1e-150;
+
+    private final int maxStates;
+
+    private final int maxTransitionsPerState;
+
+    private final double decayRate;
+
+    private final Random random;
+
+    private final LinkedHashMap<T, Node<T>> states;
+
+    private long clock;
+
+    private Node<T> previousNode;
+
+    private Node<T> currentState;
+
+    /**
+     * Constructs a {@code StreamingMarkovChain} with no states. Uses
+     * {@code new Random()} as the RNG for choosing transitions to take.
+     *
+     * @param maxStates
+     *            the maximum number of states to keep
+     * @param halfLife
+     *            the number of time units after which a transition's weight is
+     *            halved
+     * @throws IllegalArgumentException
+     *             if maxStates is less than 2 or halfLife isn't positive
+     */
+    public StreamingMarkovChain(int maxStates, double halfLife) {
+        this(maxStates, halfLife, DEFAULT_MAX_TRANSITIONS_PER_STATE, new Random());
+    }
+
+    /**
+     * Constructs a {@code StreamingMarkovChain} with no states.
+     *
+     * @param maxStates
+     *            the maximum number of states to keep
+     * @param halfLife
+     *            the number of time units after which a transition's weight is
+     *            halved
+     * @param maxTransitionsPerState
+     *            the maximum number of transitions to keep for a single state
+     * @param random
+     *            source of random numbers for calculating the next state
+     * @throws IllegalArgumentException
+     *             if maxStates is less than 2, halfLife isn't positive,
+     *             maxTransitionsPerState is less than 1 or random is null
+     */
+    public StreamingMarkovChain(int maxStates, double halfLife, int maxTransitionsPerState,
+            Random random) {
+        if (maxStates < 2) {
+            throw new IllegalArgumentException("maxStates must be at least 2");
+        }
+
+        if (!(halfLife > 0.0)) {
+            throw new IllegalArgumentException("halfLife must be positive");
+        }
+
+        if (maxTransitionsPerState < 1) {
+            throw new IllegalArgumentException("maxTransitionsPerState must be at least 1");
+        }
+
+        if (random == null) {
+            throw new IllegalArgumentException("random must not be null");
+        }
+
+        this.maxStates = maxStates;
+        this.maxTransitionsPerState = maxTransitionsPerState;
+        this.decayRate = Math.log(2.0) / halfLife;
+        this.random = random;
+        this.states = new LinkedHashMap<T, Node<T>>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Entry<T, Node<T>> eldest) {
+                if (size() > StreamingMarkovChain.this.maxStates) {
+                    eldest.getValue().evicted = true;
+                    return true;
+                }
+
+                return false;
+            }
+        };
+        this.clock = 0;
+        this.previousNode = null;
+        this.currentState = null;
+    }
+
+    /**
+     * Observes the next event of the stream, advancing the clock by one time
+     * unit. A transition from the previously observed event to this one is
+     * strengthened.
+     *
+     * @param event
+     *            the event
+     * @throws IllegalArgumentException
+     *             if the event is null
+     */
+    public void observe(T event) {
+        observe(event, this.clock + 1);
+    }
+
+    /**
+     * Observes the next event of the stream at the given time. Times earlier
+     * than the latest observed time are treated as the latest observed time. A
+     * transition from the previously observed event to this one is
+     * strengthened.
+     *
+     * @param event
+     *            the event
+     * @param time
+     *            the time the event occurred
+     * @throws IllegalArgumentException
+     *             if the event is null
+     */
+    public void observe(T event, long time) {
+        if (event == null) {
+            throw new IllegalArgumentException("event must not be null");
+        }
+
+        this.clock = Math.max(this.clock, time);
+
+        if (this.previousNode != null) {
+            // The event's own state may not have been added yet, so it
+            // counts as present when pruning
+            this.previousNode.increment(event, this.clock, this.decayRate,
+                    this.maxTransitionsPerState,
+                    to -> to.equals(event) || this.states.containsKey(to));
+        }
+
+        Node<T> node = this.states.get(event);
+
+        if (node == null) {
+            node = new Node<>(event, this.clock);
+            this.states.put(event, node);
+        }
+
+        this.previousNode = node;
+    }
+
+    /**
+     * Ends the current sequence of events, so that the next observed event
+     * won't be connected to the last one (e.g. at the end of a session).
+     */
+    public void endSequence() {
+        this.previousNode = null;
+    }
+
+    /**
+     * Sets the current state. The state must be present in the chain.
+     *
+     * @param key
+     *            the key for the state
+     * @throws StateNotDefinedException
+     *             if the given state isn't present
+     */
+    public void setState(T key) {
+        Node<T> node = this.states.get(key);
+
+        if (node == null) {
+            throw new StateNotDefinedException("Cannot set state because it isn't present");
+        }
+
+        this.currentState = node;
+    }
+
+    /**
+     * Gets the current state. If the current state has been evicted, it is
+     * cleared, unless its key has been observed again since, in which case
+     * the new state with that key becomes the current state.
+     *
+     * @return the current state or {@code null} if no current state exists
+     */
+    public T getCurrentState() {
+        Node<T> node = getCurrentNode();
+
+        if (node != null) {
+            return node.key;
+        }
+
+        return null;
+    }
+
+    /**
+     * Checks whether the state with the given key is present in the chain.
+     *
+     * @param key
+     *            the key of the state
+     * @return true if the state is present, false otherwise
+     */
+    public boolean containsState(T key) {
+        return this.states.containsKey(key);
+    }
+
+    /**
+     * Returns a set of all the states currently present in the chain.
+     *
+     * @return the states
+     */
+    public Set<T> getStates() {
+        return Collections.unmodifiableSet(this.states.keySet());
+    }
+
+    /**
+     * Gets the maximum number of states kept by this chain.
+     *
+     * @return the maximum number of states
+     */
+    public int getMaxStates() {
+        return this.maxStates;
+    }
+
+    /**
+     * Gets all the states that the state with the given key has a transition
+     * to. Only states that are still present are included; transitions to
+     * evicted states are dropped.
+     *
+     * @param key
+     *            the key for the state
+     * @return a set of present states
+     * @throws IllegalArgumentException
+     *             if key is null
+     * @throws StateNotDefinedException
+     *             if the state isn't present
+     */
+    public Set<T> getTransitionsForState(T key) {
+        return new HashSet<>(getLiveNode(key).edges.keySet());
+    }
+
+    /**
+     * Gets the decayed weight of the transition between the given states at
+     * the current time.
+     *
+     * @param from
+     *            the from-state for the transition
+     * @param to
+     *            the to-state for the transition
+     * @return the weight, or 0 if there is no such transition or the to-state
+     *         has been evicted
+     * @throws IllegalArgumentException
+     *             if from is null
+     * @throws StateNotDefinedException
+     *             if the from-state isn't present
+     */
+    public double getTransitionWeight(T from, T to) {
+        Node<T> node = getLiveNode(from);
+        Edge edge = node.edges.get(to);
+
+        if (edge == null) {
+            return 0.0;
+        }
+
+        return edge.raw * node.scaleAt(this.clock, this.decayRate);
+    }
+
+    /**
+     * Gets the decayed weight of all transitions from the given state to
+     * states that are still present, at the current time.
+     *
+     * @param key
+     *            the key for the state
+     * @return the total weight
+     * @throws IllegalArgumentException
+     *             if key is null
+     * @throws StateNotDefinedException
+     *             if the state isn't present
+     */
+    public double getStateWeight(T key) {
+        Node<T> node = getLiveNode(key);
+
+        return node.rawTotal * node.scaleAt(this.clock, this.decayRate);
+    }
+
+    /**
+     * Transitions from the current state to another state with probabilities
+     * proportional to the decayed transition weights. Transitions to states
+     * that have since been evicted are dropped. If the current state has no
+     * transitions, it stays the same; if it is {@code null} or has been
+     * evicted, then the new state will be as described in
+     * {@link #getCurrentState()}.
+     */
+    public void transition() {
+        Node<T> node = getCurrentNode();
+
+        if (node == null) {
+            return;
+        }
+
+        while (!node.edges.isEmpty()) {
+            T key = node.sample(this.random);
+            Node<T> next = this.states.get(key);
+
+            if (next != null) {
+                this.currentState = next;
+                return;
+            }
+
+            node.remove(key);
+        }
+    }
+
+    /**
+     * Gets the node of the current state, first replacing it if it has been
+     * evicted.
+     */
+    private Node<T> getCurrentNode() {
+        if (this.currentState != null && this.currentState.evicted) {
+            this.currentState = this.states.get(this.currentState.key);
+        }
+
+        return this.currentState;
+    }
+
+    private Node<T> getNode(T key) {
+        if (key == null) {
+            throw new IllegalArgumentException("key must not be null");
+        }
+
+        Node<T> node = this.states.get(key);
+
+        if (node == null) {
+            throw new StateNotDefinedException("State isn't present");
+        }
+
+        return node;
+    }
+
+    /**
+     * Gets the node for the given key after dropping its transitions to
+     * states that have been evicted since it was last touched.
+     */
+    private Node<T> getLiveNode(T key) {
+        Node<T> node = getNode(key);
+
+        // containsKey doesn't count as an access, so this keeps the LRU order
+        node.edges.keySet().removeIf(to -> !this.states.containsKey(to));
+        node.recomputeTotal();
+
+        return node;
+    }
+
+    /**
+     * Weight of a single transition. Stored in units of the owning node's
+     * scale factor.
+     */
+    private static final class Edge {
+
+        private double raw;
+    }
+
+    /**
+     * A state with lazily decayed transition weights. The actual weight of a
+     * transition is {@code raw * scale}, so decaying all transitions of a state
+     * only touches {@code scale}.
+     */
+    private static final class Node<T> {
+
+        private final T key;
+
+        private final Map<T, Edge> edges;
+
+        private double rawTotal;
+
+        private double scale;
+
+        private long lastTouched;
+
+        private boolean evicted;
+
+        private Node(T key, long time) {
+            this.key = key;
+            this.edges = new HashMap<>(4);
+            this.rawTotal = 0.0;
+            this.scale = 1.0;
+            this.lastTouched = time;
+        }
+
+        private double scaleAt(long time, double decayRate) {
+            return this.scale * Math.exp(-decayRate * (time - this.lastTouched));
+        }
+
+        private void decay(long time, double decayRate) {
+            if (time != this.lastTouched) {
+                this.scale = scaleAt(time, decayRate);
+                this.lastTouched = time;
+
+                if (this.scale < RESCALE_THRESHOLD) {
+                    rescale();
+                }
+            }
+        }
+
+        private void increment(T to, long time, double decayRate, int maxTransitions,
+                Predicate<T> present) {
+            decay(time, decayRate);
+
+            Edge edge = this.edges.get(to);
+
+            if (edge == null) {
+                edge = new Edge();
+                this.edges.put(to, edge);
+            }
+
+            double amount = 1.0 / this.scale;
+            edge.raw += amount;
+            this.rawTotal += amount;
+
+            if (this.edges.size() > maxTransitions) {
+                prune(maxTransitions - maxTransitions / 4, present);
+            }
+        }
+
+        /**
+         * Folds the scale factor into the raw weights and drops transitions
+         * that have decayed to almost nothing.
+         */
+        private void rescale() {
+            double total = 0.0;
+
+            for (Iterator<Edge> it = this.edges.values().iterator(); it.hasNext();) {
+                Edge edge = it.next();
+                edge.raw *= this.scale;
+
+                if (edge.raw < MIN_WEIGHT) {
+                    it.remove();
+                } else {
+                    total += edge.raw;
+                }
+            }
+
+            this.rawTotal = total;
+            this.scale = 1.0;
+        }
+
+        /**
+         * Drops transitions to states that aren't present any more, then the
+         * lightest transitions until at most {@code target} remain. Only called
+         * once every {@code maxTransitions / 4} new transitions, so the cost is
+         * amortized over those insertions.
+         */
+        private void prune(int target, Predicate<T> present) {
+            this.edges.keySet().removeIf(present.negate());
+            recomputeTotal();
+
+            if (this.edges.size() <= target) {
+                return;
+            }
+
+            double[] weights = new double[this.edges.size()];
+            int i = 0;
+
+            for (Edge edge : this.edges.values()) {
+                weights[i++] = edge.raw;
+            }
+
+            Arrays.sort(weights);
+            double threshold = weights[weights.length - target - 1];
+            int toRemove = weights.length - target;
+
+            for (Iterator<Edge> it = this.edges.values().iterator(); it.hasNext()
+                    && toRemove > 0;) {
+                Edge edge = it.next();
+
+                if (edge.raw <= threshold) {
+                    it.remove();
+                    this.rawTotal -= edge.raw;
+                    toRemove--;
+                }
+            }
+        }
+
+        private void recomputeTotal() {
+            double total = 0.0;
+
+            for (Edge edge : this.edges.values()) {
+                total += edge.raw;
+            }
+
+            this.rawTotal = total;
+        }
+
+        private void remove(T to) {
+            Edge edge = this.edges.remove(to);
+
+            if (edge != null) {
+                this.rawTotal -= edge.raw;
+            }
+
+            if (this.edges.isEmpty()) {
+                this.rawTotal = 0.0;
+            }
+        }
+
+        private T sample(Random random) {
+            double rand = random.nextDouble() * this.rawTotal;
+            T last = null;
+
+            for (Entry<T, Edge> e : this.edges.entrySet()) {
+                last = e.getKey();
+                rand -= e.getValue().raw;
+
+                if (rand < 0.0) {
+                    break;
+                }
+            }
+
+            return last;
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package net.asgot.markovchain;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A compact dictionary that assigns dense int ids to string tokens. Instead of
+ * keeping a {@code String} object and a map entry per token, the UTF-8 bytes of
+ * all tokens are stored back to back in one off-heap buffer, and an
+ * open-addressing table of ids is used to look them up. Tokens are only
+ * decoded back into strings when asked for, so a large vocabulary costs a few
+ * primitive arrays on the heap and no per-token objects.
+ *
+ * @author Daniel Martin
+ *
+ */
+public class TokenDictionary implements StateKeys<String> {
+
+    private static final int INITIAL_ARENA_CAPACITY = 1 << 16;
+
+    private static final int INITIAL_TABLE_CAPACITY = 1 << 10;
+
+    private ByteBuffer arena;
+
+    private int arenaSize;
+
+    /**
+     * Start offset of each token in the arena; the token with id {@code i}
+     * ends where token {@code i + 1} starts.
+     */
+    private int[] offsets;
+
+    private int[] hashes;
+
+    private int size;
+
+    /**
+     * Open-addressing table holding {@code id + 1} for each token, or 0 for
+     * empty slots.
+     */
+    private int[] table;
+
+    /**
+     * Constructs an empty {@code TokenDictionary}.
+     */
+    public TokenDictionary() {
+        this.arena = ByteBuffer.allocateDirect(INITIAL_ARENA_CAPACITY);
+        this.arenaSize = 0;
+        this.offsets = new int[INITIAL_TABLE_CAPACITY / 2 + 1];
+        this.hashes = new int[INITIAL_TABLE_CAPACITY / 2];
+        this.size = 0;
+        this.table = new int[INITIAL_TABLE_CAPACITY];
+    }
+
+    /**
+     * Adds the given token if it isn't in the dictionary yet. Tokens get ids in
+     * the order they are added, starting at 0.
+     *
+     * @param token
+     *            the token
+     * @return the id of the token
+     * @throws IllegalArgumentException
+     *             if token is null
+     * @throws IllegalStateException
+     *             if the dictionary is full
+     */
+    public int add(String token) {
+        if (token == null) {
+            throw new IllegalArgumentException("token must not be null");
+        }
+
+        byte[] bytes = token.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(bytes);
+        int mask = this.table.length - 1;
+        int slot = hash & mask;
+
+        while (this.table[slot] != 0) {
+            int id = this.table[slot] - 1;
+
+            if (this.hashes[id] == hash && matches(id, bytes)) {
+                return id;
+            }
+
+            slot = (slot + 1) & mask;
+        }
+
+        int id = this.size;
+        ensureCapacity(bytes.length);
+
+        this.arena.position(this.arenaSize);
+        this.arena.put(bytes);
+        this.arenaSize += bytes.length;
+        this.hashes[id] = hash;
+        this.offsets[id + 1] = this.arenaSize;
+        this.table[slot] = id + 1;
+        this.size++;
+
+        if (this.size * 2 > this.table.length) {
+            rehash();
+        }
+
+        return id;
+    }
+
+    /**
+     * Gets the id of the given token.
+     *
+     * @param token
+     *            the token
+     * @return the id, or -1 if the token isn't in the dictionary or is null
+     */
+    @Override
+    public int idOf(String token) {
+        if (token == null) {
+            return -1;
+        }
+
+        byte[] bytes = token.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(bytes);
+        int mask = this.table.length - 1;
+        int slot = hash & mask;
+
+        while (this.table[slot] != 0) {
+            int id = this.table[slot] - 1;
+
+            if (this.hashes[id] == hash && matches(id, bytes)) {
+                return id;
+            }
+
+            slot = (slot + 1) & mask;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Decodes the token with the given id.
+     *
+     * @param id
+     *            the id of the token
+     * @return the token
+     * @throws IndexOutOfBoundsException
+     *             if no token has the given id
+     */
+    @Override
+    public String keyOf(int id) {
+        if (id < 0 || id >= this.size) {
+            throw new IndexOutOfBoundsException("No token has id " + id);
+        }
+
+        byte[] bytes = new byte[this.offsets[id + 1] - this.offsets[id]];
+        ByteBuffer buffer = this.arena.duplicate();
+        buffer.position(this.offsets[id]);
+        buffer.get(bytes);
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Gets the number of tokens in the dictionary.
+     *
+     * @return the number of tokens
+     */
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Gets the number of bytes used to store the tokens off-heap.
+     *
+     * @return the number of bytes
+     */
+    public long getArenaSize() {
+        return this.arenaSize;
+    }
+
+    private boolean matches(int id, byte[] bytes) {
+        int start = this.offsets[id];
+
+        if (this.offsets[id + 1] - start != bytes.length) {
+            return false;
+        }
+
+        for (int i = 0; i < bytes.length; i++) {
+            if (this.arena.get(start + i) != bytes[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private void ensureCapacity(int length) {
+        if (this.size == this.hashes.length) {
+            this.hashes = Arrays.copyOf(this.hashes, this.hashes.length * 2);
+            this.offsets = Arrays.copyOf(this.offsets, this.hashes.length + 1);
+        }
+
+        long needed = (long) this.arenaSize + length;
+
+        if (needed > this.arena.capacity()) {
+            if (needed > Integer.MAX_VALUE) {
+                throw new IllegalStateException("Token dictionary is full");
+            }
+
+            int capacity = (int) Math.min(Integer.MAX_VALUE,
+                    Math.max(needed, 2L * this.arena.capacity()));
+            ByteBuffer grown = ByteBuffer.allocateDirect(capacity);
+            this.arena.position(0);
+            this.arena.limit(this.arenaSize);
+            grown.put(this.arena);
+            this.arena = grown;
+        }
+    }
+
+    private void rehash() {
+        int[] grown = new int[this.table.length * 2];
+        int mask = grown.length - 1;
+
+        for (int id = 0; id < this.size; id++) {
+            int slot = this.hashes[id] & mask;
+
+            while (grown[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+
+            grown[slot] = id + 1;
+        }
+
+        this.table = grown;
+    }
+
+    /**
+     * FNV-1a over the bytes, followed by a final mix so that the low bits used
+     * for the table are well distributed.
+     */
+    private static int hash(byte[] bytes) {
+        int hash = 0x811c9dc5;
+
+        for (byte b : bytes) {
+            hash = (hash ^ b) * 0x01000193;
+        }
+
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        return hash;
+    }
+}
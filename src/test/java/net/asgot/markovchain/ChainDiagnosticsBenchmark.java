@@ -0,0 +1,74 @@
+package net.asgot.markovchain;
+
+import java.util.Random;
+
+/**
+ * Measures how long {@link ChainDiagnostics} takes on a large chain. Not run as
+ * part of the tests; after {@code mvn test-compile} run it with
+ * {@code java -Xmx4g -cp target/classes:target/test-classes
+ * net.asgot.markovchain.ChainDiagnosticsBenchmark}.
+ * <p>
+ * Uses the same generated chain as {@link CompiledMarkovChainBenchmark}. The
+ * number of iterations is fixed, so the times are per 200 iterations rather
+ * than until convergence.
+ *
+ * @author Daniel Martin
+ *
+ */
+public class ChainDiagnosticsBenchmark {
+
+    private static final int STATES = 1_000_000;
+
+    private static final int ITERATIONS = 200;
+
+    private static final int WALKERS = 8;
+
+    private static final int STEPS = 1_000_000;
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args
+     *            optionally the number of states and a {@link StateOrdering}
+     *            to reorder the chain with first
+     */
+    public static void main(String[] args) {
+        int states = args.length > 0 ? Integer.parseInt(args[0]) : STATES;
+        CompiledMarkovChain<Integer> chain = CompiledMarkovChain.compile(
+                CompiledMarkovChainBenchmark.generate(states, 42), new Random(7));
+
+        if (args.length > 1) {
+            long start = System.nanoTime();
+            chain = chain.reorder(StateOrdering.valueOf(args[1]));
+            report("reordering", start, Double.NaN);
+        }
+
+        System.out.printf("%d states, %d transitions%n", chain.getStateCount(),
+                chain.getTransitionCount());
+
+        long start = System.nanoTime();
+        ChainDiagnostics<Integer> diagnostics = new ChainDiagnostics<>(chain, new Random(7),
+                ITERATIONS, 1e-9);
+        report("setup", start, Double.NaN);
+
+        start = System.nanoTime();
+        double[] stationary = diagnostics.getStationaryDistribution();
+        report("stationary distribution", start, stationary[0]);
+
+        start = System.nanoTime();
+        report("second eigenvalue modulus", start, diagnostics.getSecondEigenvalueModulus());
+
+        start = System.nanoTime();
+        double[] distances = diagnostics.getTotalVariationDistancesById(0, 100);
+        report("total variation, 100 steps", start, distances[100]);
+
+        start = System.nanoTime();
+        report("gelman-rubin", start,
+                diagnostics.getGelmanRubinStatisticById(id -> id % 2, WALKERS, STEPS));
+    }
+
+    private static void report(String name, long start, double result) {
+        System.out.printf("%-28s %6d ms (%g)%n", name, (System.nanoTime() - start) / 1_000_000,
+                result);
+    }
+}
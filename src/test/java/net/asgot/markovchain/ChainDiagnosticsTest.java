@@ -0,0 +1,242 @@
+package net.asgot.markovchain;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link ChainDiagnostics}
+ *
+ * @author Daniel Martin
+ *
+ */
+public class ChainDiagnosticsTest {
+
+    private MarkovChain<String> markovChain;
+
+    private ChainDiagnostics<String> diagnostics;
+
+    /**
+     * Setup a two state chain where a leads to b with probability 0.3 and b
+     * leads to a with probability 0.2. Its stationary distribution is (0.4,
+     * 0.6) and its second eigenvalue is 1 - 0.3 - 0.2 = 0.5.
+     */
+    @Before
+    public void setUp() {
+        this.markovChain = new MarkovChain<>();
+        markovChain.addState("a");
+        markovChain.addState("b");
+        markovChain.addTransition("a", "b", 0.3);
+        markovChain.addTransition("b", "a", 0.2);
+
+        this.diagnostics = diagnose(markovChain);
+    }
+
+    /**
+     * Tests the stationary distribution of the two state chain
+     */
+    @Test
+    public void stationaryDistribution() {
+        assertArrayEquals(new double[] { 0.4, 0.6 }, diagnostics.getStationaryDistribution(),
+                1e-8);
+        assertEquals(0.6, diagnostics.getStationaryProbability("b"), 1e-8);
+    }
+
+    /**
+     * Tests the second eigenvalue modulus and spectral gap of the two state
+     * chain
+     */
+    @Test
+    public void spectralGap() {
+        assertEquals(0.5, diagnostics.getSecondEigenvalueModulus(), 1e-8);
+        assertEquals(0.5, diagnostics.getSpectralGap(), 1e-8);
+    }
+
+    /**
+     * With enough iterations, both computations should report that they
+     * converged
+     */
+    @Test
+    public void converged() {
+        ChainDiagnostics.Convergence stationary = diagnostics.getStationaryConvergence();
+        assertTrue(stationary.isConverged());
+        assertTrue(stationary.getIterations() > 0);
+        assertTrue(stationary.getResidual() <= 1e-12);
+
+        ChainDiagnostics.Convergence eigenvalue = diagnostics.getEigenvalueConvergence();
+        assertTrue(eigenvalue.isConverged());
+        assertTrue(eigenvalue.getResidual() <= 1e-12);
+    }
+
+    /**
+     * Running out of iterations should be reported rather than passed off as
+     * converged
+     */
+    @Test
+    public void notConverged() {
+        ChainDiagnostics<String> limited = new ChainDiagnostics<>(markovChain, new Random(42),
+                5, 1e-12);
+
+        ChainDiagnostics.Convergence stationary = limited.getStationaryConvergence();
+        assertFalse(stationary.isConverged());
+        assertEquals(5, stationary.getIterations());
+        assertTrue(stationary.getResidual() > 1e-12);
+
+        ChainDiagnostics.Convergence eigenvalue = limited.getEigenvalueConvergence();
+        assertFalse(eigenvalue.isConverged());
+        assertEquals(5, eigenvalue.getIterations());
+        assertEquals(Double.POSITIVE_INFINITY, eigenvalue.getResidual(), 0.0);
+    }
+
+    /**
+     * The distance from a after t steps should be 0.6 * 0.5^t
+     */
+    @Test
+    public void totalVariationDistances() {
+        double[] distances = diagnostics.getTotalVariationDistances("a", 10);
+        assertEquals(11, distances.length);
+
+        for (int t = 0; t <= 10; t++) {
+            assertEquals(0.6 * Math.pow(0.5, t), distances[t], 1e-8);
+        }
+    }
+
+    /**
+     * A cycle is periodic, so its stationary distribution is uniform but it
+     * never mixes: its eigenvalues all have modulus 1
+     */
+    @Test
+    public void periodicChain() {
+        MarkovChain<String> cycle = new MarkovChain<>();
+
+        for (String key : new String[] { "a", "b", "c" }) {
+            cycle.addState(key);
+        }
+
+        cycle.addTransition("a", "b", 1.0);
+        cycle.addTransition("b", "c", 1.0);
+        cycle.addTransition("c", "a", 1.0);
+        ChainDiagnostics<String> cycleDiagnostics = diagnose(cycle);
+
+        assertArrayEquals(new double[] { 1.0 / 3, 1.0 / 3, 1.0 / 3 },
+                cycleDiagnostics.getStationaryDistribution(), 1e-8);
+        assertEquals(1.0, cycleDiagnostics.getSecondEigenvalueModulus(), 1e-6);
+        assertEquals(2.0 / 3, cycleDiagnostics.getTotalVariationDistances("a", 30)[30], 1e-8);
+    }
+
+    /**
+     * A lazy random walk on a ring of n states has the second eigenvalue (1 +
+     * cos(2 pi / n)) / 2
+     */
+    @Test
+    public void ringSecondEigenvalue() {
+        ChainDiagnostics<Integer> ringDiagnostics = diagnose(ring(16));
+        assertEquals((1.0 + Math.cos(2.0 * Math.PI / 16)) / 2.0,
+                ringDiagnostics.getSecondEigenvalueModulus(), 1e-6);
+    }
+
+    /**
+     * A ring large enough to be processed in parallel should have a uniform
+     * stationary distribution and get closer to it with every step
+     */
+    @Test
+    public void largeRing() {
+        int states = ChainDiagnostics.PARALLEL_THRESHOLD;
+        ChainDiagnostics<Integer> ringDiagnostics = diagnose(ring(states));
+
+        for (double probability : ringDiagnostics.getStationaryDistribution()) {
+            assertEquals(1.0 / states, probability, 1e-12);
+        }
+
+        double[] distances = ringDiagnostics.getTotalVariationDistances(0, 100);
+
+        for (int t = 1; t <= 100; t++) {
+            assertTrue(distances[t] < distances[t - 1]);
+        }
+    }
+
+    /**
+     * Walkers on a chain that mixes quickly should agree
+     */
+    @Test
+    public void gelmanRubinConverged() {
+        double statistic = diagnostics.getGelmanRubinStatistic(key -> key.equals("a") ? 1.0 : 0.0,
+                8, 2000);
+        assertEquals(1.0, statistic, 0.05);
+    }
+
+    /**
+     * Walkers stuck in different parts of a chain that isn't irreducible
+     * should disagree
+     */
+    @Test
+    public void gelmanRubinNotConverged() {
+        MarkovChain<String> split = new MarkovChain<>();
+
+        for (String key : new String[] { "a", "b", "c", "d" }) {
+            split.addState(key);
+        }
+
+        split.addTransition("a", "b", 0.5);
+        split.addTransition("b", "a", 0.5);
+        split.addTransition("c", "d", 0.5);
+        split.addTransition("d", "c", 0.5);
+        ChainDiagnostics<String> splitDiagnostics = diagnose(split);
+
+        assertEquals(1.0, splitDiagnostics.getSecondEigenvalueModulus(), 1e-6);
+        assertTrue(splitDiagnostics.getGelmanRubinStatistic(
+                key -> key.compareTo("b") > 0 ? 1.0 : 0.0, 8, 2000) > 2.0);
+    }
+
+    /**
+     * Should throw an exception for fewer than 2 walkers
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void gelmanRubinOneWalker() {
+        diagnostics.getGelmanRubinStatisticById(id -> id, 1, 100);
+    }
+
+    /**
+     * Should throw an exception for a negative number of steps
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeSteps() {
+        diagnostics.getTotalVariationDistancesById(0, -1);
+    }
+
+    /**
+     * Should throw an exception for undefined states
+     */
+    @Test(expected = StateNotDefinedException.class)
+    public void undefinedState() {
+        diagnostics.getTotalVariationDistancesById(2, 10);
+    }
+
+    /**
+     * Creates a lazy random walk on a ring of the given number of states
+     */
+    private static MarkovChain<Integer> ring(int states) {
+        MarkovChain<Integer> ring = new MarkovChain<>();
+
+        for (int i = 0; i < states; i++) {
+            ring.addState(i);
+        }
+
+        for (int i = 0; i < states; i++) {
+            ring.addTransition(i, (i + 1) % states, 0.25);
+            ring.addTransition(i, (i + states - 1) % states, 0.25);
+        }
+
+        return ring;
+    }
+
+    private static <T> ChainDiagnostics<T> diagnose(ChainStructure<T> chain) {
+        return new ChainDiagnostics<>(chain, new Random(42), 10000, 1e-12);
+    }
+}
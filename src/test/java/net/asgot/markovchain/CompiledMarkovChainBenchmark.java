@@ -0,0 +1,110 @@
+package net.asgot.markovchain;
+
+import java.util.Random;
+
+/**
+ * Measures walk steps per second on a large {@link CompiledMarkovChain} before
+ * and after reordering its states. Not run as part of the tests; after
+ * {@code mvn test-compile} run it with {@code java -Xmx4g -cp
+ * target/classes:target/test-classes
+ * net.asgot.markovchain.CompiledMarkovChainBenchmark}, under
+ * {@code perf stat -e cache-misses} to count cache misses.
+ * <p>
+ * The generated chain has a local structure (each state mostly leads to
+ * states near it on a ring, plus a few popular hubs) hidden behind randomly
+ * shuffled ids, as happens when ids are handed out in arrival order.
+ *
+ * @author Daniel Martin
+ *
+ */
+public class CompiledMarkovChainBenchmark {
+
+    private static final int STATES = 1_000_000;
+
+    private static final int SUCCESSORS = 4;
+
+    private static final int HUBS = 1000;
+
+    private static final int STEPS = 20_000_000;
+
+    private static final int ROUNDS = 5;
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args
+     *            optionally the number of states
+     */
+    public static void main(String[] args) {
+        int states = args.length > 0 ? Integer.parseInt(args[0]) : STATES;
+        CompiledMarkovChain<Integer> chain = CompiledMarkovChain.compile(generate(states, 42),
+                new Random(7));
+
+        System.out.printf("%d states, %d transitions%n", chain.getStateCount(),
+                chain.getTransitionCount());
+
+        long start = System.nanoTime();
+        CompiledMarkovChain<Integer> cuthillMcKee = chain.reorder(StateOrdering.CUTHILL_MCKEE);
+        System.out.printf("Cuthill-McKee reordering took %d ms%n",
+                (System.nanoTime() - start) / 1_000_000);
+
+        start = System.nanoTime();
+        CompiledMarkovChain<Integer> visitFrequency = chain.reorder(StateOrdering.VISIT_FREQUENCY);
+        System.out.printf("Visit frequency reordering took %d ms%n",
+                (System.nanoTime() - start) / 1_000_000);
+
+        for (int round = 0; round < ROUNDS; round++) {
+            report("original", chain);
+            report("cuthill-mckee", cuthillMcKee);
+            report("visit-frequency", visitFrequency);
+        }
+    }
+
+    private static void report(String name, CompiledMarkovChain<Integer> chain) {
+        chain.setStateById(0);
+        long start = System.nanoTime();
+        long checksum = 0;
+
+        for (int i = 0; i < STEPS; i++) {
+            chain.transition();
+            checksum += chain.getCurrentStateId();
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%-16s %6.1f M steps/s (checksum %d)%n", name, STEPS / seconds / 1e6,
+                checksum);
+    }
+
+    /**
+     * Generates the benchmark chain.
+     */
+    static ChainStructure<Integer> generate(int states, long seed) {
+        Random random = new Random(seed);
+        int[] shuffled = new int[states];
+
+        for (int i = 0; i < states; i++) {
+            shuffled[i] = i;
+        }
+
+        for (int i = states - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = shuffled[i];
+            shuffled[i] = shuffled[j];
+            shuffled[j] = swap;
+        }
+
+        int[][] successors = new int[states][SUCCESSORS];
+
+        for (int position = 0; position < states; position++) {
+            int[] targets = successors[shuffled[position]];
+
+            for (int i = 0; i < SUCCESSORS - 1; i++) {
+                targets[i] = shuffled[(position + 1 + random.nextInt(8)) % states];
+            }
+
+            targets[SUCCESSORS - 1] = shuffled[random.nextInt(Math.min(HUBS, states))];
+        }
+
+        return new UniformChainStructure(successors);
+    }
+}
@@ -0,0 +1,262 @@
+package net.asgot.markovchain;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link CompiledMarkovChain}
+ *
+ * @author Daniel Martin
+ *
+ */
+public class CompiledMarkovChainTest {
+
+    private MarkovChain<String> markovChain;
+
+    /**
+     * Setup a chain a -> b -> c -> d with c being a hub that most states lead
+     * to
+     */
+    @Before
+    public void setUp() {
+        this.markovChain = new MarkovChain<>();
+
+        for (String key : new String[] { "d", "a", "c", "b" }) {
+            markovChain.addState(key);
+        }
+
+        markovChain.addTransition("a", "b", 0.5);
+        markovChain.addTransition("a", "c", 0.5);
+        markovChain.addTransition("b", "c", 1.0);
+        markovChain.addTransition("c", "c", 0.9);
+        markovChain.addTransition("c", "d", 0.1);
+        markovChain.addTransition("d", "a", 1.0);
+    }
+
+    /**
+     * A compiled chain should keep the ids and transitions of the source chain
+     */
+    @Test
+    public void compileKeepsIds() {
+        CompiledMarkovChain<String> chain = CompiledMarkovChain.compile(markovChain);
+
+        assertEquals(4, chain.getStateCount());
+        assertEquals(6, chain.getTransitionCount());
+
+        for (String key : markovChain.getStates()) {
+            int id = markovChain.getStateId(key);
+            assertEquals(id, chain.getStateId(key));
+            assertEquals(key, chain.getKey(id));
+            assertArrayEquals(markovChain.getSuccessorIds(id), chain.getSuccessorIds(id));
+            assertArrayEquals(markovChain.getSuccessorProbabilities(id),
+                    chain.getSuccessorProbabilities(id), 1e-9);
+            assertEquals(markovChain.getTransitionsForState(key),
+                    chain.getTransitionsForState(key));
+        }
+
+        assertTrue(chain.containsState("a"));
+        assertFalse(chain.containsState("e"));
+    }
+
+    /**
+     * Transitions should be taken based on the probabilities, staying on the
+     * current state for the remaining probability
+     */
+    @Test
+    public void transition() {
+        Random rand = mock(Random.class);
+        when(rand.nextDouble()).thenReturn(0.75);
+
+        MarkovChain<String> mc = new MarkovChain<>();
+        mc.addState("a");
+        mc.addState("b");
+        mc.addTransition("a", "b", 0.5);
+
+        CompiledMarkovChain<String> chain = CompiledMarkovChain.compile(mc, rand);
+        chain.setState("a");
+        chain.transition();
+        assertEquals("a", chain.getCurrentState());
+
+        when(rand.nextDouble()).thenReturn(0.25);
+        chain.transition();
+        assertEquals("b", chain.getCurrentState());
+        assertEquals(1, chain.getCurrentStateId());
+
+        chain.transition();
+        assertEquals("b", chain.getCurrentState());
+    }
+
+    /**
+     * Reordering should keep every transition between the same keys with the
+     * same probability
+     */
+    @Test
+    public void reorderKeepsTransitions() {
+        CompiledMarkovChain<String> chain = CompiledMarkovChain.compile(markovChain);
+
+        for (StateOrdering ordering : StateOrdering.values()) {
+            CompiledMarkovChain<String> reordered = chain.reorder(ordering);
+            assertEquals(chain.getStateCount(), reordered.getStateCount());
+
+            for (String key : markovChain.getStates()) {
+                assertEquals(probabilitiesByKey(chain, key), probabilitiesByKey(reordered, key));
+            }
+        }
+    }
+
+    /**
+     * Cuthill-McKee order should start with the state with the fewest
+     * transitions and continue breadth-first
+     */
+    @Test
+    public void cuthillMcKeeOrder() {
+        CompiledMarkovChain<String> chain = CompiledMarkovChain.compile(markovChain)
+                .reorder(StateOrdering.CUTHILL_MCKEE);
+
+        assertEquals("d", chain.getKey(0));
+        assertEquals("a", chain.getKey(1));
+        assertEquals("b", chain.getKey(2));
+        assertEquals("c", chain.getKey(3));
+    }
+
+    /**
+     * Visit frequency order should put the most visited state first
+     */
+    @Test
+    public void visitFrequencyOrder() {
+        CompiledMarkovChain<String> chain = CompiledMarkovChain.compile(markovChain)
+                .reorder(StateOrdering.VISIT_FREQUENCY);
+
+        assertEquals("c", chain.getKey(0));
+    }
+
+    /**
+     * Relabeling with something that isn't a permutation should throw an
+     * exception
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void relabelNotPermutation() {
+        CompiledMarkovChain.compile(markovChain).relabel(new int[] { 0, 1, 1, 2 });
+    }
+
+    /**
+     * A chain structure without a walk cursor should compile into a chain
+     * that can be walked
+     */
+    @Test
+    public void compileStructure() {
+        ChainStructure<Integer> structure = new UniformChainStructure(
+                new int[][] { { 1, 2 }, { 2 }, {} });
+        CompiledMarkovChain<Integer> chain = CompiledMarkovChain.compile(structure,
+                new Random(3));
+
+        assertEquals(3, chain.getStateCount());
+        assertArrayEquals(new double[] { 0.5, 0.5 }, chain.getSuccessorProbabilities(0), 1e-12);
+
+        chain.setState(1);
+        chain.transition();
+        assertEquals(Integer.valueOf(2), chain.getCurrentState());
+        chain.transition();
+        assertEquals(Integer.valueOf(2), chain.getCurrentState());
+    }
+
+    /**
+     * Using an id that no state has should throw an exception
+     */
+    @Test(expected = StateNotDefinedException.class)
+    public void idNotDefined() {
+        CompiledMarkovChain.compile(markovChain).setStateById(4);
+    }
+
+    /**
+     * Tests the fromStrings factory method, which should give the same chain
+     * as {@link MarkovChain#fromStrings(java.util.Iterator)}
+     */
+    @Test
+    public void fromStrings() {
+        List<String> strings = Arrays.asList("the", "man", "and", "the", "man", "the", "end");
+        CompiledMarkovChain<String> chain = CompiledMarkovChain.fromStrings(strings.iterator(),
+                new Random(1));
+        MarkovChain<String> expected = MarkovChain.fromStrings(strings.iterator());
+
+        assertEquals(4, chain.getStateCount());
+
+        for (String key : new String[] { "the", "man", "and", "end" }) {
+            assertTrue(chain.containsState(key));
+            assertEquals(expected.getTransitionsForState(key), chain.getTransitionsForState(key));
+        }
+
+        Map<String, Double> theProbabilities = probabilitiesByKey(chain, "the");
+        assertEquals(2.0 / 3.0, theProbabilities.get("man"), 1e-9);
+        assertEquals(1.0 / 3.0, theProbabilities.get("end"), 1e-9);
+        assertEquals(0, chain.getSuccessorIds(chain.getStateId("end")).length);
+
+        chain.setState("and");
+        chain.transition();
+        assertEquals("the", chain.getCurrentState());
+    }
+
+    /**
+     * Reordering a chain built from strings should keep resolving keys through
+     * its dictionary instead of copying them, also when reordered twice
+     */
+    @Test
+    public void reorderKeepsDictionary() {
+        List<String> strings = Arrays.asList("the", "man", "and", "the", "man", "the", "end");
+        CompiledMarkovChain<String> chain = CompiledMarkovChain.fromStrings(strings.iterator(),
+                new Random(1));
+        CompiledMarkovChain<String> reordered = chain.reorder(StateOrdering.CUTHILL_MCKEE)
+                .reorder(StateOrdering.VISIT_FREQUENCY);
+
+        assertTrue(chain.getStateKeys() instanceof TokenDictionary);
+        assertTrue(reordered.getStateKeys() instanceof StateKeys.PermutedStateKeys);
+        assertSame(chain.getStateKeys(),
+                ((StateKeys.PermutedStateKeys<String>) reordered.getStateKeys()).getBase());
+
+        for (String key : new String[] { "the", "man", "and", "end" }) {
+            assertEquals(key, reordered.getKey(reordered.getStateId(key)));
+            assertEquals(probabilitiesByKey(chain, key), probabilitiesByKey(reordered, key));
+        }
+
+        assertFalse(reordered.containsState("woman"));
+    }
+
+    /**
+     * giving fromStrings a null argument should throw IllegalArgumentException
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void fromStringsNullIterator() {
+        CompiledMarkovChain.fromStrings(null);
+    }
+
+    private static Map<String, Double> probabilitiesByKey(CompiledMarkovChain<String> chain,
+            String key) {
+        int id = chain.getStateId(key);
+        int[] successors = chain.getSuccessorIds(id);
+        double[] probabilities = chain.getSuccessorProbabilities(id);
+        Map<String, Double> result = new HashMap<>();
+
+        for (int i = 0; i < successors.length; i++) {
+            result.put(chain.getKey(successors[i]), probabilities[i]);
+        }
+
+        Set<String> transitions = chain.getTransitionsForState(key);
+        assertEquals(transitions, result.keySet());
+        return result;
+    }
+}
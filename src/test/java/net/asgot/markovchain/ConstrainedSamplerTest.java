@@ -0,0 +1,236 @@
+package net.asgot.markovchain;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link ConstrainedSampler}
+ *
+ * @author Daniel Martin
+ *
+ */
+public class ConstrainedSamplerTest {
+
+    private MarkovChain<String> markovChain;
+
+    private ConstrainedSampler<String> sampler;
+
+    /**
+     * Setup a chain where a leads to b or c, b leads to d and c leads back to
+     * a. d has no transitions and stays put.
+     */
+    @Before
+    public void setUp() {
+        this.markovChain = new MarkovChain<>();
+
+        for (String key : new String[] { "a", "b", "c", "d" }) {
+            markovChain.addState(key);
+        }
+
+        markovChain.addTransition("a", "b", 0.5);
+        markovChain.addTransition("a", "c", 0.5);
+        markovChain.addTransition("b", "d", 1.0);
+        markovChain.addTransition("c", "a", 1.0);
+
+        this.sampler = new ConstrainedSampler<>(markovChain, new Random(42),
+                2 * ConstrainedSampler.weightsSize(4, 4));
+    }
+
+    /**
+     * With few steps only the direct path reaches the target
+     */
+    @Test
+    public void onlyPathWithinSteps() {
+        for (int i = 0; i < 100; i++) {
+            List<String> walk = sampler.sample("a", Collections.singleton("d"),
+                    Collections.<String> emptySet(), 2);
+            assertEquals(Arrays.asList("a", "b", "d"), walk);
+        }
+    }
+
+    /**
+     * Walks should follow the chain's distribution conditioned on reaching
+     * the target: a-b-d has probability 1/2 and a-c-a-b-d has 1/4, so the
+     * first should be taken 2/3 of the time
+     */
+    @Test
+    public void conditionedDistribution() {
+        int samples = 30000;
+        int direct = 0;
+
+        for (int i = 0; i < samples; i++) {
+            List<String> walk = sampler.sample("a", Collections.singleton("d"),
+                    Collections.<String> emptySet(), 4);
+            assertEquals("d", walk.get(walk.size() - 1));
+
+            if (walk.size() == 3) {
+                direct++;
+            }
+        }
+
+        assertEquals(2.0 / 3.0, direct / (double) samples, 0.01);
+        assertEquals(0.75, sampler.getProbability(0, ids(3), new BitSet(), 4), 1e-9);
+    }
+
+    /**
+     * Walks without targets should take exactly the given number of steps and
+     * avoid the given states, including staying put on states without
+     * transitions
+     */
+    @Test
+    public void avoidOnly() {
+        List<String> walk = sampler.sample("a", Collections.<String> emptySet(),
+                Collections.singleton("c"), 5);
+        assertEquals(Arrays.asList("a", "b", "d", "d", "d", "d"), walk);
+    }
+
+    /**
+     * A walk that starts on a target should end immediately
+     */
+    @Test
+    public void startOnTarget() {
+        assertEquals(Collections.singletonList("d"),
+                sampler.sample("d", Collections.singleton("d"), Collections.<String> emptySet(), 3));
+    }
+
+    /**
+     * Constraints that can't be satisfied should have probability 0 and throw
+     * an exception when sampled
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void unsatisfiable() {
+        assertEquals(0.0, sampler.getProbability(0, ids(3), ids(1), 10), 0.0);
+        sampler.sample("a", Collections.singleton("d"), Collections.singleton("b"), 10);
+    }
+
+    /**
+     * Weights should be cached per constraint, up to the cache capacity in
+     * bytes, and weights larger than the cache shouldn't be cached at all
+     */
+    @Test
+    public void weightsAreCached() {
+        long size = ConstrainedSampler.weightsSize(4, 4);
+
+        sampler.getProbability(0, ids(3), new BitSet(), 4);
+        sampler.getProbability(1, ids(3), new BitSet(), 4);
+        assertEquals(1, sampler.getCachedConstraintCount());
+        assertEquals(size, sampler.getCacheSize());
+
+        sampler.getProbability(0, ids(3), ids(2), 4);
+        sampler.getProbability(0, ids(1), new BitSet(), 4);
+        assertEquals(2, sampler.getCachedConstraintCount());
+        assertEquals(2 * size, sampler.getCacheSize());
+
+        sampler.getProbability(0, ids(3), new BitSet(), 100);
+        assertEquals(2, sampler.getCachedConstraintCount());
+        assertEquals(2 * size, sampler.getCacheSize());
+    }
+
+    /**
+     * Long walks that satisfy a constraint with a tiny probability should
+     * still be sampled: with b avoided, the only walk from a stays on a, which
+     * has probability 0.5^steps
+     */
+    @Test
+    public void longHorizon() {
+        MarkovChain<String> twoStates = new MarkovChain<>();
+        twoStates.addState("a");
+        twoStates.addState("b");
+        twoStates.addTransition("a", "b", 0.5);
+        ConstrainedSampler<String> longSampler = new ConstrainedSampler<>(twoStates,
+                new Random(42), ConstrainedSampler.DEFAULT_CACHE_CAPACITY);
+
+        assertEquals(1000 * Math.log(0.5), longSampler.getLogProbability(0, new BitSet(),
+                ids(1), 1000), 1e-9);
+        assertEquals(Math.pow(0.5, 1000), longSampler.getProbability(0, new BitSet(), ids(1),
+                1000), 1e-310);
+        assertEquals(1100 * Math.log(0.5), longSampler.getLogProbability(0, new BitSet(),
+                ids(1), 1100), 1e-9);
+
+        List<String> walk = longSampler.sample("a", Collections.<String> emptySet(),
+                Collections.singleton("b"), 1100);
+        assertEquals(1101, walk.size());
+        assertEquals(Collections.singleton("a"), new HashSet<>(walk));
+    }
+
+    /**
+     * Walks to a target that are far less likely than walks from the states
+     * next to it should neither underflow nor fail to sample
+     */
+    @Test
+    public void longHorizonToTarget() {
+        int length = 1100;
+        MarkovChain<Integer> line = new MarkovChain<>();
+
+        for (int i = 0; i <= length; i++) {
+            line.addState(i);
+        }
+
+        for (int i = 0; i < length; i++) {
+            line.addTransition(i, i + 1, 0.5);
+        }
+
+        ConstrainedSampler<Integer> longSampler = new ConstrainedSampler<>(line,
+                new Random(42), ConstrainedSampler.DEFAULT_CACHE_CAPACITY);
+
+        assertEquals(length * Math.log(0.5), longSampler.getLogProbability(0, ids(length),
+                new BitSet(), length), 1e-6);
+
+        List<Integer> walk = longSampler.sample(0, Collections.singleton(length),
+                Collections.<Integer> emptySet(), length);
+        assertEquals(length + 1, walk.size());
+
+        for (int i = 0; i <= length; i++) {
+            assertEquals(Integer.valueOf(i), walk.get(i));
+        }
+    }
+
+    /**
+     * Changing a set after using it should not affect the cached constraint
+     */
+    @Test
+    public void cachedConstraintIsCopied() {
+        BitSet avoid = new BitSet();
+        assertTrue(sampler.getProbability(0, ids(3), avoid, 4) > 0.0);
+
+        avoid.set(1);
+        assertFalse(sampler.getProbability(0, ids(3), avoid, 4) > 0.0);
+    }
+
+    /**
+     * Should throw an exception for a negative number of steps
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeSteps() {
+        sampler.getProbability(0, ids(3), new BitSet(), -1);
+    }
+
+    /**
+     * Should throw an exception for undefined states
+     */
+    @Test(expected = StateNotDefinedException.class)
+    public void undefinedState() {
+        sampler.sample("e", Collections.singleton("d"), Collections.<String> emptySet(), 4);
+    }
+
+    private static BitSet ids(int... ids) {
+        BitSet set = new BitSet();
+
+        for (int id : ids) {
+            set.set(id);
+        }
+
+        return set;
+    }
+}
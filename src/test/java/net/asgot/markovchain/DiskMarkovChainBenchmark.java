@@ -0,0 +1,167 @@
+package net.asgot.markovchain;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares walk steps per second on a {@link DiskMarkovChain} with different
+ * cache capacities against the same chain as a {@link CompiledMarkovChain}.
+ * Not run as part of the tests; after {@code mvn test-compile} run it with
+ * {@code java -Xmx4g -cp target/classes:target/test-classes
+ * net.asgot.markovchain.DiskMarkovChainBenchmark}.
+ * <p>
+ * The successors of every state are drawn from a Zipf distribution over all
+ * states, so walks spend most of their time on a small set of popular states,
+ * as walks over real-world chains tend to do.
+ *
+ * @author Daniel Martin
+ *
+ */
+public class DiskMarkovChainBenchmark {
+
+    private static final int STATES = 1_000_000;
+
+    private static final int SUCCESSORS = 8;
+
+    private static final double ZIPF_EXPONENT = 1.0;
+
+    private static final int STEPS = 10_000_000;
+
+    /**
+     * Cache capacities to measure, as fractions of the size of all blocks.
+     */
+    private static final double[] CACHE_FRACTIONS = { 0.01, 0.1, 1.0 };
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args
+     *            optionally the number of states
+     * @throws IOException
+     *             if the segment file can't be written
+     */
+    public static void main(String[] args) throws IOException {
+        int states = args.length > 0 ? Integer.parseInt(args[0]) : STATES;
+        ChainStructure<Integer> generated = generate(states, 42);
+        Path file = Files.createTempFile("markovchain", ".seg");
+
+        try {
+            CompiledMarkovChain<Integer> compiled = CompiledMarkovChain.compile(generated,
+                    new Random(7));
+            List<Integer> keys;
+
+            try (DiskMarkovChain<Integer> disk = DiskMarkovChain.create(generated, file, 0)) {
+                keys = keysOf(disk);
+            }
+
+            long blockBytes = (long) states * DiskMarkovChain.BLOCK_OVERHEAD
+                    + (long) states * SUCCESSORS * DiskMarkovChain.TRANSITION_SIZE;
+            System.out.printf("%d states, %d transitions, %d MB of blocks%n", states,
+                    compiled.getTransitionCount(), blockBytes >> 20);
+
+            for (int round = 0; round < 2; round++) {
+                report("compiled", compiled, null);
+
+                for (double fraction : CACHE_FRACTIONS) {
+                    try (DiskMarkovChain<Integer> disk = DiskMarkovChain.open(file, keys,
+                            (long) (blockBytes * fraction), new Random(7))) {
+                        report(String.format("disk, %.0f%% cached", fraction * 100), disk, disk);
+                    }
+                }
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static List<Integer> keysOf(DiskMarkovChain<Integer> disk) {
+        Integer[] keys = new Integer[disk.getStateCount()];
+
+        for (int id = 0; id < keys.length; id++) {
+            keys[id] = disk.getKey(id);
+        }
+
+        return Arrays.asList(keys);
+    }
+
+    private static void report(String name, IndexedChain<Integer> chain,
+            DiskMarkovChain<Integer> disk) {
+        chain.setStateById(0);
+        long start = System.nanoTime();
+        long checksum = 0;
+
+        for (int i = 0; i < STEPS; i++) {
+            chain.transition();
+            checksum += chain.getCurrentStateId();
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        String hitRate = disk == null ? ""
+                : String.format(", %.1f%% hits", 100.0 * disk.getCacheHits()
+                        / (disk.getCacheHits() + disk.getCacheMisses()));
+        System.out.printf("%-20s %6.2f M steps/s (checksum %d%s)%n", name,
+                STEPS / seconds / 1e6, checksum, hitRate);
+    }
+
+    /**
+     * Generates the benchmark chain.
+     */
+    private static ChainStructure<Integer> generate(int states, long seed) {
+        Random random = new Random(seed);
+        double[] cumulative = new double[states];
+        double sum = 0.0;
+
+        for (int rank = 0; rank < states; rank++) {
+            sum += 1.0 / Math.pow(rank + 1, ZIPF_EXPONENT);
+            cumulative[rank] = sum;
+        }
+
+        // Popular states get random ids, as they would in arrival order
+        int[] shuffled = new int[states];
+
+        for (int i = 0; i < states; i++) {
+            shuffled[i] = i;
+        }
+
+        for (int i = states - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = shuffled[i];
+            shuffled[i] = shuffled[j];
+            shuffled[j] = swap;
+        }
+
+        int successorCount = Math.min(SUCCESSORS, states);
+        int[][] successors = new int[states][successorCount];
+
+        for (int id = 0; id < states; id++) {
+            int[] targets = successors[id];
+
+            for (int i = 0; i < successorCount; i++) {
+                int target;
+
+                do {
+                    int rank = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+                    target = shuffled[Math.min(rank < 0 ? -rank - 1 : rank, states - 1)];
+                } while (contains(targets, i, target));
+
+                targets[i] = target;
+            }
+        }
+
+        return new UniformChainStructure(successors);
+    }
+
+    private static boolean contains(int[] values, int length, int value) {
+        for (int i = 0; i < length; i++) {
+            if (values[i] == value) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,253 @@
+package net.asgot.markovchain;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests {@link DiskMarkovChain}
+ *
+ * @author Daniel Martin
+ *
+ */
+public class DiskMarkovChainTest {
+
+    /**
+     * Folder for the segment files
+     */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path newFile() throws IOException {
+        return folder.newFile().toPath();
+    }
+
+    /**
+     * A chain created from a {@link MarkovChain} should have the same states
+     * and transitions
+     */
+    @Test
+    public void createFromMarkovChain() throws IOException {
+        MarkovChain<String> mc = new MarkovChain<>();
+        mc.addState("S");
+        mc.addState("R");
+        mc.addTransition("S", "R", 0.1);
+        mc.addTransition("S", "S", 0.9);
+        mc.addTransition("R", "S", 1.0);
+
+        try (DiskMarkovChain<String> chain = DiskMarkovChain.create(mc, newFile(), 1 << 20)) {
+            assertEquals(mc.getStates(), chain.getStates());
+            assertTrue(chain.containsState("S"));
+            assertFalse(chain.containsState("X"));
+
+            Set<String> sTransitions = chain.getTransitionsForState("S");
+            assertEquals(2, sTransitions.size());
+            assertTrue(sTransitions.contains("R"));
+
+            chain.setState("R");
+            chain.transition();
+            assertEquals("S", chain.getCurrentState());
+        }
+    }
+
+    /**
+     * A chain created from a {@link MarkovChain} should keep its state ids
+     */
+    @Test
+    public void createKeepsIds() throws IOException {
+        MarkovChain<String> mc = new MarkovChain<>();
+        mc.addState("a");
+        mc.addState("b");
+        mc.addState("c");
+        mc.addTransition("a", "c", 0.5);
+        mc.addTransition("a", "b", 0.5);
+
+        try (DiskMarkovChain<String> chain = DiskMarkovChain.create(mc, newFile(), 1 << 20)) {
+            assertEquals(3, chain.getStateCount());
+
+            for (String key : mc.getStates()) {
+                int id = mc.getStateId(key);
+                assertEquals(id, chain.getStateId(key));
+                assertEquals(key, chain.getKey(id));
+                assertArrayEquals(mc.getSuccessorIds(id), chain.getSuccessorIds(id));
+                assertArrayEquals(mc.getSuccessorProbabilities(id),
+                        chain.getSuccessorProbabilities(id), 1e-9);
+            }
+
+            chain.setStateById(mc.getStateId("b"));
+            assertEquals("b", chain.getCurrentState());
+            assertEquals(1, chain.getCurrentStateId());
+        }
+    }
+
+    /**
+     * Transitions should be taken based on the probabilities written
+     */
+    @Test
+    public void transitionUsesProbabilities() throws IOException {
+        Random rand = mock(Random.class);
+        when(rand.nextDouble()).thenReturn(0.5);
+
+        Map<String, Double> transitions = new HashMap<>();
+        transitions.put("b", 0.4);
+
+        try (DiskMarkovChain.Writer<String> writer = new DiskMarkovChain.Writer<>(newFile())) {
+            writer.addState("a");
+            writer.addState("b");
+            writer.addTransitions("a", transitions);
+
+            try (DiskMarkovChain<String> chain = writer.open(1 << 20, rand)) {
+                chain.setState("a");
+                chain.transition();
+                assertEquals("a", chain.getCurrentState());
+
+                when(rand.nextDouble()).thenReturn(0.3);
+                chain.transition();
+                assertEquals("b", chain.getCurrentState());
+
+                chain.transition();
+                assertEquals("b", chain.getCurrentState());
+            }
+        }
+    }
+
+    /**
+     * Repeated lookups should hit the cache, and the cache should stay within
+     * its capacity
+     */
+    @Test
+    public void cacheHitsAndMisses() throws IOException {
+        Path file = newFile();
+        DiskMarkovChain.Writer<Integer> writer = new DiskMarkovChain.Writer<>(file);
+
+        for (int i = 0; i < 10; i++) {
+            writer.addState(i);
+        }
+
+        for (int i = 0; i < 10; i++) {
+            writer.addTransitions(i, Collections.singletonMap((i + 1) % 10, 1.0));
+        }
+
+        writer.close();
+
+        // Room for exactly two single-transition blocks
+        long capacity = 2 * (DiskMarkovChain.BLOCK_OVERHEAD + DiskMarkovChain.TRANSITION_SIZE);
+
+        try (DiskMarkovChain<Integer> chain = DiskMarkovChain.open(file, writer.getKeys(),
+                capacity)) {
+            chain.setState(0);
+            chain.transition();
+            chain.setState(0);
+            chain.transition();
+
+            assertEquals(1, chain.getCacheMisses());
+            assertEquals(1, chain.getCacheHits());
+
+            for (int i = 0; i < 20; i++) {
+                chain.transition();
+                assertTrue(chain.getCacheSize() <= capacity);
+            }
+
+            assertEquals(Integer.valueOf(1), chain.getCurrentState());
+        }
+    }
+
+    /**
+     * A cache with no capacity should still serve transitions
+     */
+    @Test
+    public void zeroCapacityCache() throws IOException {
+        MarkovChain<String> mc = new MarkovChain<>();
+        mc.addState("a");
+        mc.addState("b");
+        mc.addTransition("a", "b", 1.0);
+
+        try (DiskMarkovChain<String> chain = DiskMarkovChain.create(mc, newFile(), 0)) {
+            chain.setState("a");
+            chain.transition();
+            assertEquals("b", chain.getCurrentState());
+            assertEquals(0, chain.getCacheSize());
+        }
+    }
+
+    /**
+     * Opening with the wrong number of keys should throw an exception
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void wrongNumberOfKeys() throws IOException {
+        Path file = newFile();
+
+        try (DiskMarkovChain.Writer<String> writer = new DiskMarkovChain.Writer<>(file)) {
+            writer.addState("a");
+        }
+
+        DiskMarkovChain.open(file, Arrays.asList("a", "b"), 0);
+    }
+
+    /**
+     * Writing transitions twice for a state should throw an exception
+     */
+    @Test(expected = TransitionAlreadyDefinedException.class)
+    public void transitionsAlreadyWritten() throws IOException {
+        try (DiskMarkovChain.Writer<String> writer = new DiskMarkovChain.Writer<>(newFile())) {
+            writer.addState("a");
+            writer.addTransitions("a", Collections.singletonMap("a", 1.0));
+            writer.addTransitions("a", Collections.singletonMap("a", 1.0));
+        }
+    }
+
+    /**
+     * Writing transitions to a state that hasn't been added should throw an
+     * exception
+     */
+    @Test(expected = StateNotDefinedException.class)
+    public void toStateNotDefined() throws IOException {
+        try (DiskMarkovChain.Writer<String> writer = new DiskMarkovChain.Writer<>(newFile())) {
+            writer.addState("a");
+            writer.addTransitions("a", Collections.singletonMap("b", 1.0));
+        }
+    }
+
+    /**
+     * Probabilities summing to more than 1 should throw an exception
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void sumOfProbabilitiesExceedsOne() throws IOException {
+        Map<String, Double> transitions = new HashMap<>();
+        transitions.put("a", 0.9);
+        transitions.put("b", 0.2);
+
+        try (DiskMarkovChain.Writer<String> writer = new DiskMarkovChain.Writer<>(newFile())) {
+            writer.addState("a");
+            writer.addState("b");
+            writer.addTransitions("a", transitions);
+        }
+    }
+
+    /**
+     * Setting a state that hasn't been defined should throw an exception
+     */
+    @Test(expected = StateNotDefinedException.class)
+    public void stateNotDefined() throws IOException {
+        try (DiskMarkovChain<String> chain = DiskMarkovChain.create(new MarkovChain<String>(),
+                newFile(), 0)) {
+            chain.setState("not defined");
+        }
+    }
+}
@@ -1,11 +1,13 @@
 package net.asgot.markovchain;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import net.asgot.markovchain.MarkovChain;
@@ -182,6 +184,79 @@ public class MarkovChainTest {
         markovChain.getTransitionsForState("state");
     }
 
+    /**
+     * Make sure transition probabilities can be read back
+     */
+    @Test
+    public void getTransitionProbabilitiesForState() {
+        markovChain.addState("s1");
+        markovChain.addState("s2");
+        markovChain.addTransition("s1", "s2", 0.25);
+        markovChain.addTransition("s1", "s1", 0.75);
+
+        Map<String, Double> probabilities = markovChain.getTransitionProbabilitiesForState("s1");
+        assertEquals(2, probabilities.size());
+        assertEquals(0.25, probabilities.get("s2"), 1e-9);
+        assertEquals(0.75, probabilities.get("s1"), 1e-9);
+        assertEquals(0, markovChain.getTransitionProbabilitiesForState("s2").size());
+    }
+
+    /**
+     * States should get dense ids in the order they're added, and the id
+     * based methods should work on them
+     */
+    @Test
+    public void stateIds() {
+        markovChain.addState("s1");
+        markovChain.addState("s2");
+        assertEquals(2, markovChain.getStateCount());
+
+        int s1 = markovChain.getStateId("s1");
+        int s2 = markovChain.getStateId("s2");
+        assertEquals(0, s1);
+        assertEquals(1, s2);
+        assertEquals("s2", markovChain.getKey(s2));
+
+        markovChain.addTransitionById(s1, s2, 0.25);
+        assertArrayEquals(new int[] { s2 }, markovChain.getSuccessorIds(s1));
+        assertArrayEquals(new double[] { 0.25 }, markovChain.getSuccessorProbabilities(s1), 1e-9);
+        assertEquals(0, markovChain.getSuccessorIds(s2).length);
+
+        assertEquals(-1, markovChain.getCurrentStateId());
+        markovChain.setStateById(s1);
+        assertEquals("s1", markovChain.getCurrentState());
+        assertEquals(s1, markovChain.getCurrentStateId());
+    }
+
+    /**
+     * setState() on a chain with Integer keys should take the key, not the id
+     */
+    @Test
+    public void integerKeysAreNotIds() {
+        MarkovChain<Integer> chain = new MarkovChain<>();
+        chain.addState(5);
+        chain.setState(5);
+        assertEquals(Integer.valueOf(5), chain.getCurrentState());
+        assertEquals(0, chain.getCurrentStateId());
+    }
+
+    /**
+     * Using an id that no state has should throw exception
+     */
+    @Test(expected = StateNotDefinedException.class)
+    public void idNotDefined() {
+        markovChain.addState("s1");
+        markovChain.setStateById(1);
+    }
+
+    /**
+     * Getting the id of an undefined state should throw exception
+     */
+    @Test(expected = StateNotDefinedException.class)
+    public void getStateIdNotDefined() {
+        markovChain.getStateId("not defined");
+    }
+
     /**
      * Tests the fromStrings factory method
      */
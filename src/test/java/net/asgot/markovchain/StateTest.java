@@ -4,6 +4,9 @@ import static org.junit.Assert.assertEquals;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Random;
 
 import net.asgot.markovchain.State;
@@ -147,6 +150,136 @@ public class StateTest {
         assertEquals(rightState, newState);
     }
 
+    /**
+     * Transitions with zero probability should still be listed, and never
+     * be taken
+     */
+    @Test
+    public void zeroProbabilityTransitionsAreKept() {
+        Random rand = mock(Random.class);
+        when(rand.nextDouble()).thenReturn(0.0);
+
+        State<Object> state = new State<>(new Object(), rand);
+        State<Object> zero = new State<>(new Object());
+        State<Object> one = new State<>(new Object());
+
+        state.addTransition(zero, 0.0);
+        state.addTransition(one, 1.0);
+
+        assertEquals(2, state.getTransitions().size());
+        assertEquals(0.0, state.getTransitionProbabilities().get(zero), 1e-9);
+        assertEquals(one, state.getNextState());
+    }
+
+    /**
+     * Duplicate transitions should be detected once there are too many
+     * transitions to scan
+     */
+    @Test(expected = TransitionAlreadyDefinedException.class)
+    public void addTransitionToSameStateTwiceWithManyTransitions() {
+        State<Object> state = new State<>(new Object());
+        State<Object> other = new State<>(new Object());
+
+        state.addTransition(other, 0.0);
+
+        for (int i = 0; i < 2 * State.LINEAR_SCAN_LIMIT; i++) {
+            state.addTransition(new State<>(new Object()), 0.0);
+        }
+
+        state.addTransition(other, 0.0);
+    }
+
+    /**
+     * States with many transitions should sample with the right probabilities,
+     * including staying on the same state for the remaining probability
+     */
+    @Test
+    public void aliasTableProbabilities() {
+        State<Object> state = new State<>(new Object(), new Random(42));
+        State<Object> heavy = new State<>(new Object());
+        int count = 2 * State.ALIAS_TABLE_THRESHOLD;
+
+        state.addTransition(heavy, 0.3);
+
+        for (int i = 1; i < count; i++) {
+            state.addTransition(new State<>(new Object()), 0.5 / (count - 1));
+        }
+
+        int samples = 200000;
+        int heavyCount = 0;
+        int selfCount = 0;
+
+        for (int i = 0; i < samples; i++) {
+            State<Object> next = state.getNextState();
+
+            if (next == heavy) {
+                heavyCount++;
+            } else if (next == state) {
+                selfCount++;
+            }
+        }
+
+        assertEquals(0.3, heavyCount / (double) samples, 0.01);
+        assertEquals(0.2, selfCount / (double) samples, 0.01);
+    }
+
+    /**
+     * Adding a transition after sampling should be taken into account by the
+     * alias table
+     */
+    @Test
+    public void aliasTableUpdatedAfterAddingTransition() {
+        State<Object> state = new State<>(new Object(), new Random(42));
+        State<Object> rightState = new State<>(new Object());
+
+        for (int i = 0; i < State.ALIAS_TABLE_THRESHOLD; i++) {
+            state.addTransition(new State<>(new Object()), 0.0);
+        }
+
+        assertEquals(state, state.getNextState());
+
+        state.addTransition(rightState, 1.0);
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals(rightState, state.getNextState());
+        }
+    }
+
+    /**
+     * Duplicate transitions should still be detected after the alias table has
+     * been built
+     */
+    @Test(expected = TransitionAlreadyDefinedException.class)
+    public void addTransitionToSameStateTwiceAfterSampling() {
+        State<Object> state = new State<>(new Object(), new Random(42));
+        State<Object> other = new State<>(new Object());
+
+        state.addTransition(other, 0.0);
+
+        for (int i = 0; i < State.ALIAS_TABLE_THRESHOLD; i++) {
+            state.addTransition(new State<>(new Object()), 0.0);
+        }
+
+        state.getNextState();
+        state.addTransition(other, 0.0);
+    }
+
+    /**
+     * getTransitions() should reflect transitions added after it was called
+     */
+    @Test
+    public void getTransitionsIsLiveView() {
+        State<Object> state = new State<>(new Object());
+        State<Object> first = new State<>(new Object());
+        State<Object> second = new State<>(new Object());
+
+        state.addTransition(first, 0.5);
+        Collection<State<Object>> transitions = state.getTransitions();
+        state.addTransition(second, 0.5);
+
+        assertEquals(Arrays.asList(first, second), new ArrayList<>(transitions));
+    }
+
     /**
      * getKey() should return the correct key
      */
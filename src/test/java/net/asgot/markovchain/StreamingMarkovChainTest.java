@@ -0,0 +1,276 @@
+package net.asgot.markovchain;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link StreamingMarkovChain}
+ *
+ * @author Daniel Martin
+ *
+ */
+public class StreamingMarkovChainTest {
+
+    private StreamingMarkovChain<String> markovChain;
+
+    /**
+     * Setup the test object
+     */
+    @Before
+    public void setUp() {
+        this.markovChain = new StreamingMarkovChain<>(100, 10.0);
+    }
+
+    /**
+     * Observed events should become states with transitions between
+     * consecutive events
+     */
+    @Test
+    public void observeCreatesTransitions() {
+        markovChain.observe("a");
+        markovChain.observe("b");
+        markovChain.observe("a");
+
+        assertTrue(markovChain.containsState("a"));
+        assertTrue(markovChain.containsState("b"));
+        assertEquals(2, markovChain.getStates().size());
+
+        Set<String> aTransitions = markovChain.getTransitionsForState("a");
+        assertEquals(1, aTransitions.size());
+        assertTrue(aTransitions.contains("b"));
+    }
+
+    /**
+     * Weights should halve after one half-life has passed
+     */
+    @Test
+    public void weightsDecay() {
+        markovChain.observe("a", 0);
+        markovChain.observe("b", 0);
+        assertEquals(1.0, markovChain.getTransitionWeight("a", "b"), 1e-9);
+
+        markovChain.observe("c", 10);
+        assertEquals(0.5, markovChain.getTransitionWeight("a", "b"), 1e-9);
+
+        markovChain.observe("d", 20);
+        assertEquals(0.25, markovChain.getTransitionWeight("a", "b"), 1e-9);
+        assertEquals(0.25, markovChain.getStateWeight("a"), 1e-9);
+    }
+
+    /**
+     * Recent observations should outweigh old ones
+     */
+    @Test
+    public void recentTransitionsDominate() {
+        markovChain.observe("a", 0);
+        markovChain.observe("b", 0);
+        markovChain.endSequence();
+        markovChain.observe("a", 100);
+        markovChain.observe("c", 100);
+
+        assertEquals(1.0, markovChain.getTransitionWeight("a", "c"), 1e-9);
+        assertTrue(markovChain.getTransitionWeight("a", "b") < 0.001);
+    }
+
+    /**
+     * endSequence() should prevent a transition between sequences
+     */
+    @Test
+    public void endSequence() {
+        markovChain.observe("a");
+        markovChain.endSequence();
+        markovChain.observe("b");
+
+        assertEquals(0, markovChain.getTransitionsForState("a").size());
+    }
+
+    /**
+     * The number of states should never exceed the maximum, and the least
+     * recently used state should be evicted
+     */
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        StreamingMarkovChain<Integer> chain = new StreamingMarkovChain<>(3, 10.0);
+
+        for (int i = 0; i < 10; i++) {
+            chain.observe(i);
+            assertTrue(chain.getStates().size() <= 3);
+        }
+
+        assertTrue(chain.containsState(9));
+        assertTrue(chain.containsState(8));
+        assertTrue(chain.containsState(7));
+        assertFalse(chain.containsState(0));
+    }
+
+    /**
+     * The number of transitions per state should never exceed the maximum
+     */
+    @Test
+    public void boundsTransitionsPerState() {
+        StreamingMarkovChain<Integer> chain = new StreamingMarkovChain<>(1000, 10.0, 8,
+                new Random());
+
+        for (int i = 1; i < 100; i++) {
+            chain.observe(0);
+            chain.observe(i);
+            assertTrue(chain.getTransitionsForState(0).size() <= 8);
+        }
+    }
+
+    /**
+     * Transitions should be taken based on their weights
+     */
+    @Test
+    public void transition() {
+        Random rand = mock(Random.class);
+        when(rand.nextDouble()).thenReturn(0.5);
+
+        StreamingMarkovChain<String> chain = new StreamingMarkovChain<>(10, 10.0, 10, rand);
+        chain.observe("a");
+        chain.observe("b");
+        chain.setState("a");
+        chain.transition();
+
+        assertEquals("b", chain.getCurrentState());
+    }
+
+    /**
+     * Transitions to evicted states should be dropped, both from queries and
+     * from walks, and the chain should stay on the current state if nothing is
+     * left
+     */
+    @Test
+    public void transitionToEvictedState() {
+        StreamingMarkovChain<String> chain = new StreamingMarkovChain<>(2, 10.0);
+        chain.observe("a");
+        chain.observe("b");
+        chain.endSequence();
+        chain.getStateWeight("a");
+        chain.observe("c");
+
+        assertFalse(chain.containsState("b"));
+        assertEquals(0, chain.getTransitionsForState("a").size());
+        assertEquals(0.0, chain.getTransitionWeight("a", "b"), 0.0);
+        assertEquals(0.0, chain.getStateWeight("a"), 0.0);
+
+        chain.setState("a");
+        chain.transition();
+
+        assertEquals("a", chain.getCurrentState());
+        assertEquals(0, chain.getTransitionsForState("a").size());
+    }
+
+    /**
+     * When the current state is evicted, it should be cleared rather than
+     * walked on, unless its key has been observed again
+     */
+    @Test
+    public void currentStateEvicted() {
+        StreamingMarkovChain<String> chain = new StreamingMarkovChain<>(2, 10.0);
+        chain.observe("a");
+        chain.observe("b");
+        chain.setState("a");
+        chain.observe("c");
+        chain.observe("d");
+
+        assertFalse(chain.containsState("a"));
+        chain.transition();
+        assertNull(chain.getCurrentState());
+
+        chain.setState("d");
+        chain.observe("e");
+        chain.observe("f");
+        assertFalse(chain.containsState("d"));
+        chain.observe("d");
+
+        assertEquals("d", chain.getCurrentState());
+        assertTrue(chain.containsState("d"));
+    }
+
+    /**
+     * Pruning should drop transitions to evicted states before light
+     * transitions to present states
+     */
+    @Test
+    public void pruneDropsEvictedFirst() {
+        StreamingMarkovChain<Integer> chain = new StreamingMarkovChain<>(6, 1e9, 4,
+                new Random());
+
+        for (int repeat = 0; repeat < 10; repeat++) {
+            for (int i = 1; i <= 3; i++) {
+                chain.observe(0);
+                chain.observe(i);
+            }
+        }
+
+        for (int i = 10; i < 15; i++) {
+            chain.endSequence();
+            chain.observe(i);
+            chain.setState(0);
+        }
+
+        chain.endSequence();
+        chain.observe(0);
+        chain.observe(20);
+        chain.observe(0);
+        chain.observe(21);
+
+        assertEquals(new HashSet<>(Arrays.asList(20, 21)), chain.getTransitionsForState(0));
+    }
+
+    /**
+     * null should be returned if no state is set as well as after transition()
+     * is called
+     */
+    @Test
+    public void noStateTransition() {
+        assertEquals(null, markovChain.getCurrentState());
+        markovChain.transition();
+        assertEquals(null, markovChain.getCurrentState());
+    }
+
+    /**
+     * Setting a state that isn't present should throw exception
+     */
+    @Test(expected = StateNotDefinedException.class)
+    public void stateNotDefined() {
+        markovChain.setState("not present");
+    }
+
+    /**
+     * Should throw an exception when observing null
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void observeNull() {
+        markovChain.observe(null);
+    }
+
+    /**
+     * Should throw an exception if the half-life isn't positive
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void nonPositiveHalfLife() {
+        new StreamingMarkovChain<String>(10, 0.0);
+    }
+
+    /**
+     * Should throw an exception if fewer than 2 states are allowed
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void tooFewStates() {
+        new StreamingMarkovChain<String>(1, 10.0);
+    }
+}
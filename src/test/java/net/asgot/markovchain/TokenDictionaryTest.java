@@ -0,0 +1,100 @@
+package net.asgot.markovchain;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link TokenDictionary}
+ *
+ * @author Daniel Martin
+ *
+ */
+public class TokenDictionaryTest {
+
+    private TokenDictionary dictionary;
+
+    @Before
+    public void setUp() {
+        this.dictionary = new TokenDictionary();
+    }
+
+    /**
+     * Tokens should get ids in the order they are added, and adding a token
+     * again should give the same id
+     */
+    @Test
+    public void addAndLookUp() {
+        assertEquals(0, dictionary.add("the"));
+        assertEquals(1, dictionary.add("man"));
+        assertEquals(0, dictionary.add("the"));
+        assertEquals(2, dictionary.add(""));
+
+        assertEquals(3, dictionary.size());
+        assertEquals(6, dictionary.getArenaSize());
+        assertEquals(1, dictionary.idOf("man"));
+        assertEquals(2, dictionary.idOf(""));
+        assertEquals("the", dictionary.keyOf(0));
+        assertEquals("", dictionary.keyOf(2));
+    }
+
+    /**
+     * Tokens should be stored as UTF-8 and decoded back unchanged
+     */
+    @Test
+    public void unicode() {
+        int id = dictionary.add("na\u00efve \u65e5\u672c \ud83d\ude00");
+        assertEquals("na\u00efve \u65e5\u672c \ud83d\ude00", dictionary.keyOf(id));
+        assertEquals(id, dictionary.idOf("na\u00efve \u65e5\u672c \ud83d\ude00"));
+        assertEquals(-1, dictionary.idOf("naive"));
+    }
+
+    /**
+     * The dictionary should grow past its initial buffer and table sizes
+     */
+    @Test
+    public void growth() {
+        int count = 20000;
+
+        for (int i = 0; i < count; i++) {
+            assertEquals(i, dictionary.add("token-" + i));
+        }
+
+        assertEquals(count, dictionary.size());
+
+        for (int i = 0; i < count; i++) {
+            assertEquals(i, dictionary.idOf("token-" + i));
+            assertEquals("token-" + i, dictionary.keyOf(i));
+        }
+
+        assertEquals(-1, dictionary.idOf("token-" + count));
+    }
+
+    /**
+     * Looking up tokens that aren't in the dictionary should give -1
+     */
+    @Test
+    public void absent() {
+        dictionary.add("the");
+        assertEquals(-1, dictionary.idOf("then"));
+        assertEquals(-1, dictionary.idOf(null));
+    }
+
+    /**
+     * Adding null should throw an exception
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void addNull() {
+        dictionary.add(null);
+    }
+
+    /**
+     * Decoding an id that no token has should throw an exception
+     */
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void keyOfUndefined() {
+        dictionary.add("the");
+        dictionary.keyOf(1);
+    }
+}
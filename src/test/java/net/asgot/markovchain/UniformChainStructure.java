@@ -0,0 +1,68 @@
+package net.asgot.markovchain;
+
+import java.util.Arrays;
+
+/**
+ * A {@link ChainStructure} over int arrays for generated test and benchmark
+ * chains, which would need far more memory as a {@link MarkovChain}. Each
+ * state is its own key and moves to each of its successors with equal
+ * probability.
+ *
+ * @author Daniel Martin
+ *
+ */
+final class UniformChainStructure implements ChainStructure<Integer> {
+
+    private final int[][] successors;
+
+    /**
+     * Constructs a {@code UniformChainStructure}.
+     *
+     * @param successors
+     *            the successor ids of each state
+     */
+    UniformChainStructure(int[][] successors) {
+        this.successors = successors;
+    }
+
+    @Override
+    public int getStateCount() {
+        return this.successors.length;
+    }
+
+    @Override
+    public int getStateId(Integer key) {
+        if (key == null) {
+            throw new IllegalArgumentException("key must not be null");
+        }
+
+        checkId(key);
+        return key;
+    }
+
+    @Override
+    public Integer getKey(int id) {
+        checkId(id);
+        return id;
+    }
+
+    @Override
+    public int[] getSuccessorIds(int id) {
+        checkId(id);
+        return this.successors[id].clone();
+    }
+
+    @Override
+    public double[] getSuccessorProbabilities(int id) {
+        checkId(id);
+        double[] probabilities = new double[this.successors[id].length];
+        Arrays.fill(probabilities, 1.0 / probabilities.length);
+        return probabilities;
+    }
+
+    private void checkId(int id) {
+        if (id < 0 || id >= this.successors.length) {
+            throw new StateNotDefinedException("No state has id " + id);
+        }
+    }
+}